@@ -0,0 +1,126 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.steps.durable_task;
+
+import hudson.FilePath;
+import hudson.Launcher;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+import javax.annotation.Nonnull;
+import org.jenkinsci.plugins.durabletask.Controller;
+import org.jenkinsci.plugins.durabletask.FileMonitoringTask;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Output captured from a task for {@link DurableTaskStep#isReturnStdout}, possibly cut down to {@link DurableTaskStep#MAX_RETURN_STDOUT}.
+ * Where the output is known to be in a file, only the permitted prefix is read, so oversized output is never held in memory on the agent,
+ * and only that prefix is sent to the master.
+ */
+@Restricted(NoExternalUse.class)
+public final class CapturedOutput implements Serializable {
+
+    private static final int DECODE_BUFFER_SIZE = 8192;
+
+    /** the output, or a prefix of it if {@link #isTruncated} */
+    final @Nonnull byte[] data;
+    /** the original size in bytes */
+    final long size;
+
+    private CapturedOutput(byte[] data, long size) {
+        this.data = data;
+        this.size = size;
+    }
+
+    /**
+     * Collects the output of an exited process; to be called on the agent.
+     * @param max the maximum number of bytes to keep, or zero for no limit
+     */
+    static CapturedOutput capture(@Nonnull Controller controller, @Nonnull FilePath workspace, @Nonnull Launcher launcher, long max) throws IOException, InterruptedException {
+        if (max > 0 && controller instanceof FileMonitoringTask.FileMonitoringController) {
+            FilePath file = ((FileMonitoringTask.FileMonitoringController) controller).getOutputFile(workspace);
+            long size = file.length();
+            byte[] data = new byte[(int) Math.min(size, max)];
+            int read = 0;
+            try (InputStream is = file.read()) {
+                int n;
+                while (read < data.length && (n = is.read(data, read, data.length - read)) != -1) {
+                    read += n;
+                }
+            }
+            return new CapturedOutput(read < data.length ? Arrays.copyOf(data, read) : data, Math.max(size, read));
+        }
+        byte[] output = controller.getOutput(workspace, launcher);
+        if (max <= 0 || output.length <= max) {
+            return new CapturedOutput(output, output.length);
+        }
+        return new CapturedOutput(Arrays.copyOf(output, (int) max), output.length);
+    }
+
+    boolean isTruncated() {
+        return size > data.length;
+    }
+
+    /**
+     * Decodes the output incrementally, replacing malformed input as {@link String#String(byte[], String)} would.
+     * If truncated, an incomplete character at the end is dropped.
+     */
+    String decode(@Nonnull String encoding) throws CharacterCodingException {
+        CharsetDecoder decoder = Charset.forName(encoding).newDecoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+        ByteBuffer in = ByteBuffer.wrap(data);
+        CharBuffer out = CharBuffer.allocate(DECODE_BUFFER_SIZE);
+        StringBuilder b = new StringBuilder();
+        boolean endOfInput = !isTruncated();
+        while (true) {
+            CoderResult r = decoder.decode(in, out, endOfInput);
+            out.flip();
+            b.append(out);
+            out.clear();
+            if (r.isUnderflow()) {
+                break;
+            } else if (r.isError()) {
+                r.throwException();
+            }
+        }
+        if (endOfInput) {
+            decoder.flush(out);
+            out.flip();
+            b.append(out);
+        }
+        return b.toString();
+    }
+
+    private static final long serialVersionUID = 1L;
+
+}
@@ -0,0 +1,177 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.steps.durable_task;
+
+import hudson.security.ACL;
+import hudson.util.ClassLoaderSanityThreadFactory;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nonnull;
+import jenkins.security.ImpersonatingScheduledExecutorService;
+import jenkins.util.Timer;
+import org.jenkinsci.plugins.workflow.support.Counters;
+
+/**
+ * Runs checks of durable tasks on a thread pool of their own rather than {@link Timer},
+ * since a check may block for several seconds on a slow agent and would otherwise delay unrelated Jenkins timer tasks.
+ * As with {@link Timer}, checks run as {@link ACL#SYSTEM} on threads with a sane context class loader.
+ * Also limits the number of checks running at once against any one node,
+ * so that a few hung agents cannot occupy every thread while checks for healthy agents wait;
+ * a check over the limit is parked until another check against that node finishes.
+ * A node is tracked only while it has checks running or parked, so nodes which are removed or go offline are forgotten.
+ */
+final class CheckScheduler {
+
+    private static final Logger LOGGER = Logger.getLogger(CheckScheduler.class.getName());
+
+    private static final int POOL_SIZE = Integer.getInteger(DurableTaskStep.class.getName() + ".CHECK_THREADS", 10);
+    private static final int MAX_PER_NODE = Integer.getInteger(DurableTaskStep.class.getName() + ".MAX_CHECKS_PER_NODE", 2);
+
+    private static final ScheduledThreadPoolExecutor pool = new ScheduledThreadPoolExecutor(POOL_SIZE, new NamingThreadFactory(new ClassLoaderSanityThreadFactory(new DaemonThreadFactory()), "DurableTaskStep.CheckScheduler"));
+    private static final ScheduledExecutorService executor = new ImpersonatingScheduledExecutorService(pool, ACL.SYSTEM);
+
+    /** keys are node names; only nodes with checks running or parked */
+    private static final ConcurrentMap<String,NodeChecks> nodes = new ConcurrentHashMap<>();
+
+    private static final AtomicLong deferrals = Counters.get("durable_task_check_deferrals_total");
+    private static final AtomicLong parked = new AtomicLong();
+
+    static {
+        Counters.gauge("durable_task_check_threads_busy", new Counters.Gauge() {
+            @Override public long value() {
+                return pool.getActiveCount();
+            }
+        });
+        Counters.gauge("durable_task_checks_parked", new Counters.Gauge() {
+            @Override public long value() {
+                return parked.get();
+            }
+        });
+    }
+
+    /** Checks against one node; guarded by itself. */
+    private static final class NodeChecks {
+        int running;
+        final Queue<Limited> waiting = new ArrayDeque<>();
+        /** set once removed from {@link #nodes}, after which a fresh entry must be used */
+        boolean removed;
+    }
+
+    /**
+     * Schedules a check of something on a node.
+     * The returned future represents only the initial scheduling; the check may be deferred further.
+     */
+    static ScheduledFuture<?> schedule(@Nonnull String node, @Nonnull Runnable check, long delay, @Nonnull TimeUnit unit) {
+        return executor.schedule(new Limited(node, check), delay, unit);
+    }
+
+    /** Runs some remote operation against a node as soon as possible. */
+    static ScheduledFuture<?> submit(@Nonnull String node, @Nonnull Runnable check) {
+        return schedule(node, check, 0, TimeUnit.MILLISECONDS);
+    }
+
+    private static NodeChecks checksOf(String node) {
+        NodeChecks checks = nodes.get(node);
+        if (checks == null) {
+            NodeChecks created = new NodeChecks();
+            checks = nodes.putIfAbsent(node, created);
+            if (checks == null) {
+                checks = created;
+            }
+        }
+        return checks;
+    }
+
+    private static final class Limited implements Runnable {
+
+        private final String node;
+        private final Runnable check;
+
+        Limited(String node, Runnable check) {
+            this.node = node;
+            this.check = check;
+        }
+
+        @Override public void run() {
+            NodeChecks checks;
+            while (true) {
+                checks = checksOf(node);
+                synchronized (checks) {
+                    if (checks.removed) {
+                        continue; // went idle just now
+                    }
+                    if (checks.running >= MAX_PER_NODE) {
+                        checks.waiting.add(this);
+                        parked.incrementAndGet();
+                        deferrals.incrementAndGet();
+                        LOGGER.log(Level.FINER, "deferring check of {0} on {1}", new Object[] {check, node});
+                        return;
+                    }
+                    checks.running++;
+                    break;
+                }
+            }
+            try {
+                check.run();
+            } catch (Throwable t) {
+                LOGGER.log(Level.WARNING, "check of " + check + " on " + node + " failed", t);
+            } finally {
+                Limited next;
+                synchronized (checks) {
+                    checks.running--;
+                    next = checks.waiting.poll();
+                    if (next == null && checks.running == 0) {
+                        checks.removed = true;
+                        nodes.remove(node, checks);
+                    }
+                }
+                if (next != null) {
+                    parked.decrementAndGet();
+                    executor.submit(next);
+                }
+            }
+        }
+
+    }
+
+    /** Whether any checks are running or parked against a node. */
+    static boolean isTracked(@Nonnull String node) {
+        return nodes.containsKey(node);
+    }
+
+    private CheckScheduler() {}
+
+}
@@ -30,15 +30,24 @@ import hudson.AbortException;
 import hudson.EnvVars;
 import hudson.FilePath;
 import hudson.Launcher;
+import hudson.init.Terminator;
 import hudson.model.TaskListener;
 import hudson.util.FormValidation;
 import hudson.util.LogTaskListener;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.UUID;
+import java.util.WeakHashMap;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.annotation.CheckForNull;
@@ -47,12 +56,18 @@ import jenkins.util.Timer;
 import org.jenkinsci.plugins.durabletask.Controller;
 import org.jenkinsci.plugins.durabletask.DurableTask;
 import org.jenkinsci.plugins.workflow.FilePathUtils;
+import org.jenkinsci.plugins.workflow.flow.FlowExecution;
 import org.jenkinsci.plugins.workflow.steps.AbstractStepExecutionImpl;
 import org.jenkinsci.plugins.workflow.steps.Step;
 import org.jenkinsci.plugins.workflow.steps.StepContext;
 import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
 import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.jenkinsci.plugins.workflow.support.ComputerIndex;
+import org.jenkinsci.plugins.workflow.support.Counters;
 import org.jenkinsci.plugins.workflow.support.concurrent.Timeout;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.DoNotUse;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
 import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 
@@ -63,6 +78,144 @@ public abstract class DurableTaskStep extends Step {
 
     private static final Logger LOGGER = Logger.getLogger(DurableTaskStep.class.getName());
 
+    /**
+     * Whether to have the agent push new output and the exit status to the master as they appear.
+     * Polling is then used only as a fallback while the agent is disconnected.
+     */
+    @SuppressFBWarnings(value="MS_SHOULD_BE_FINAL", justification="mutable for scripts")
+    @Restricted(NoExternalUse.class)
+    public static boolean USE_WATCHING = Boolean.getBoolean(DurableTaskStep.class.getName() + ".USE_WATCHING");
+
+    /**
+     * Whether to check all running tasks on a given node together using {@link NodePoller}, rather than each on its own.
+     * Ignored when {@link #USE_WATCHING} is set.
+     */
+    @SuppressFBWarnings(value="MS_SHOULD_BE_FINAL", justification="mutable for scripts")
+    @Restricted(NoExternalUse.class)
+    public static boolean USE_BATCHING = Boolean.getBoolean(DurableTaskStep.class.getName() + ".USE_BATCHING");
+
+    /**
+     * Whether agents should compress new log output before sending it to the master.
+     * Applies to {@link #USE_WATCHING} and to checks made in a single round trip.
+     */
+    @SuppressFBWarnings(value="MS_SHOULD_BE_FINAL", justification="mutable for scripts")
+    @Restricted(NoExternalUse.class)
+    public static boolean COMPRESS_LOG = Boolean.getBoolean(DurableTaskStep.class.getName() + ".COMPRESS_LOG");
+
+    /**
+     * If positive, the minimum number of seconds between saves of program state caused by new log output.
+     * Combined with {@link #SAVE_STATE_BYTES}, state is saved when either threshold is crossed;
+     * if neither is set, it is saved whenever there is new output.
+     */
+    @SuppressFBWarnings(value="MS_SHOULD_BE_FINAL", justification="mutable for scripts")
+    @Restricted(NoExternalUse.class)
+    public static long SAVE_STATE_INTERVAL = Long.getLong(DurableTaskStep.class.getName() + ".SAVE_STATE_INTERVAL", 0);
+
+    /**
+     * If positive, the number of bytes of new log output after which program state is saved.
+     * @see #SAVE_STATE_INTERVAL
+     */
+    @SuppressFBWarnings(value="MS_SHOULD_BE_FINAL", justification="mutable for scripts")
+    @Restricted(NoExternalUse.class)
+    public static long SAVE_STATE_BYTES = Long.getLong(DurableTaskStep.class.getName() + ".SAVE_STATE_BYTES", 0);
+
+    /**
+     * If positive, the maximum number of bytes of output returned from a step with {@link #isReturnStdout}.
+     * Longer output is either truncated or, with {@link #FAIL_ON_STDOUT_OVERFLOW}, treated as an error; only the permitted prefix is read.
+     */
+    @SuppressFBWarnings(value="MS_SHOULD_BE_FINAL", justification="mutable for scripts")
+    @Restricted(NoExternalUse.class)
+    public static long MAX_RETURN_STDOUT = Long.getLong(DurableTaskStep.class.getName() + ".MAX_RETURN_STDOUT", 0);
+
+    /** Whether output exceeding {@link #MAX_RETURN_STDOUT} should fail the step rather than being truncated. */
+    @SuppressFBWarnings(value="MS_SHOULD_BE_FINAL", justification="mutable for scripts")
+    @Restricted(NoExternalUse.class)
+    public static boolean FAIL_ON_STDOUT_OVERFLOW = Boolean.getBoolean(DurableTaskStep.class.getName() + ".FAIL_ON_STDOUT_OVERFLOW");
+
+    /**
+     * If positive, the number of milliseconds for which a step waits on the agent for its process to exit right after launching it.
+     * A process finishing within that time completes the step synchronously, without any polling; otherwise it is polled as usual.
+     * <p>The wait blocks the thread running the whole Pipeline program, so no other {@code parallel} branch makes progress meanwhile.
+     * To bound that cost, waits are charged to a budget per program, which holds at most this many milliseconds
+     * and refills at this many milliseconds every {@link #QUICK_COMPLETION_PERIOD}:
+     * so over any long stretch a program spends at most this long blocked here per ten seconds, and a step finding the budget spent does not wait at all.
+     */
+    @SuppressFBWarnings(value="MS_SHOULD_BE_FINAL", justification="mutable for scripts")
+    @Restricted(NoExternalUse.class)
+    public static long QUICK_COMPLETION_TIMEOUT = Long.getLong(DurableTaskStep.class.getName() + ".QUICK_COMPLETION_TIMEOUT", 0);
+
+    /**
+     * If positive, the number of seconds over which the first checks of tasks are spread out after a restart.
+     * Each task is first checked at a random point in this window, counted from when its node is connected.
+     */
+    @SuppressFBWarnings(value="MS_SHOULD_BE_FINAL", justification="mutable for scripts")
+    @Restricted(NoExternalUse.class)
+    public static long RESUME_WINDOW = Long.getLong(DurableTaskStep.class.getName() + ".RESUME_WINDOW", 0);
+
+    /** Milliseconds over which a program's budget for {@link #QUICK_COMPLETION_TIMEOUT} refills. */
+    private static final long QUICK_COMPLETION_PERIOD = 10000;
+
+    /** How long each program may still block in {@link Execution#awaitQuickCompletion}. */
+    private static final class QuickCompletionBudget {
+
+        /** guarded by itself */
+        private static final Map<FlowExecution,QuickCompletionBudget> budgets = new WeakHashMap<>();
+
+        private long available = QUICK_COMPLETION_TIMEOUT;
+        private long updated = System.nanoTime();
+
+        /** Takes as much of the budget as may be spent on one wait, up to {@link #QUICK_COMPLETION_TIMEOUT}. */
+        static long take(@Nonnull FlowExecution program) {
+            synchronized (budgets) {
+                QuickCompletionBudget budget = budgets.get(program);
+                if (budget == null) {
+                    budget = new QuickCompletionBudget();
+                    budgets.put(program, budget);
+                }
+                long now = System.nanoTime();
+                long refill = TimeUnit.NANOSECONDS.toMillis(now - budget.updated) * QUICK_COMPLETION_TIMEOUT / QUICK_COMPLETION_PERIOD;
+                if (refill > 0) {
+                    budget.available = Math.min(QUICK_COMPLETION_TIMEOUT, budget.available + refill);
+                    budget.updated = now;
+                }
+                long taken = Math.min(budget.available, QUICK_COMPLETION_TIMEOUT);
+                budget.available -= taken;
+                return taken;
+            }
+        }
+
+        /** Gives back what was taken but not spent, since the process exited early. */
+        static void refund(@Nonnull FlowExecution program, long unspent) {
+            synchronized (budgets) {
+                QuickCompletionBudget budget = budgets.get(program);
+                if (budget != null && unspent > 0) {
+                    budget.available = Math.min(QUICK_COMPLETION_TIMEOUT, budget.available + unspent);
+                }
+            }
+        }
+
+    }
+
+    private static final AtomicLong checks = Counters.get("durable_task_checks_total");
+    private static final AtomicLong checkPauses = Counters.get("durable_task_check_pauses_total");
+    private static final AtomicLong stateSaves = Counters.get("durable_task_state_saves_total");
+    private static final AtomicLong stateSavesDeferred = Counters.get("durable_task_state_saves_deferred_total");
+
+    /** Tasks which may have unsaved log positions. */
+    private static final Set<Execution> running = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<Execution,Boolean>()));
+
+    /** Saves any log positions not yet saved due to {@link #SAVE_STATE_INTERVAL} or {@link #SAVE_STATE_BYTES}. */
+    @Restricted(DoNotUse.class)
+    @Terminator public static void flushState() {
+        List<Execution> executions;
+        synchronized (running) {
+            executions = new ArrayList<>(running);
+        }
+        for (Execution execution : executions) {
+            execution.flushState();
+        }
+    }
+
     private boolean returnStdout;
     private String encoding = DurableTaskStepDescriptor.defaultEncoding;
     private boolean returnStatus;
@@ -138,9 +291,31 @@ public abstract class DurableTaskStep extends Step {
 
         private transient final DurableTaskStep step;
         private transient FilePath ws;
-        private transient long recurrencePeriod;
+        /** The {@link NodeLiveness#current} connection over which {@link #ws} was found, if known. */
+        private transient Object wsConnection;
+        /** Whether {@link #ws} has been seen to be a directory over {@link #wsConnection}. */
+        private transient boolean wsVerified;
+        /** Whether checks are suspended until the node comes back online. */
+        private transient volatile boolean paused;
+        /** whether {@link #run} is in progress; guarded by this, along with the decision to schedule the next check after a pause */
+        private transient boolean checking;
+        private transient volatile long recurrencePeriod;
         private transient volatile ScheduledFuture<?> task, stopTask;
-        private Controller controller;
+        /** Whether a {@link Watcher} is believed to be running for this task. */
+        private transient volatile boolean watching;
+        /** Identifies this task to {@link Watcher}s, so that a new one replaces any old one. */
+        private transient String watchId;
+        /** The handler of the current {@link Watcher}; events sent to any other are ignored. */
+        private transient volatile HandlerImpl handler;
+        /** Whether a {@link Watcher} has failed, in which case this task is polled instead. */
+        private transient volatile boolean watchFailed;
+        /** Whether this task is being checked by a {@link NodePoller}. */
+        private transient boolean batched;
+        /** Log output copied since state was last saved. */
+        private transient long unsavedBytes;
+        private transient boolean unsaved;
+        private transient long lastSaved;
+        private volatile Controller controller;
         private String node;
         private String remote;
         private boolean returnStdout; // serialized default is false
@@ -165,18 +340,103 @@ public abstract class DurableTaskStep extends Step {
             }
             controller = durableTask.launch(context.get(EnvVars.class), ws, context.get(Launcher.class), context.get(TaskListener.class));
             this.remote = ws.getRemote();
+            running.add(this);
+            if (QUICK_COMPLETION_TIMEOUT > 0 && awaitQuickCompletion()) {
+                return true;
+            }
+            if (USE_WATCHING) {
+                try {
+                    watch(ws);
+                } catch (Exception x) {
+                    LOGGER.log(Level.FINE, "could not start watching " + remote + " on " + node + "; will poll", x);
+                }
+            }
             setupTimer();
             return false;
         }
 
-        private @CheckForNull FilePath getWorkspace() throws AbortException {
+        /**
+         * Waits on the agent for the process to exit according to {@link #QUICK_COMPLETION_TIMEOUT}, as far as the program's budget allows.
+         * @return true if the step has been completed
+         */
+        private boolean awaitQuickCompletion() throws IOException, InterruptedException {
+            FlowExecution program = getContext().get(FlowExecution.class);
+            if (program == null) {
+                return false;
+            }
+            long wait = QuickCompletionBudget.take(program);
+            if (wait <= 0) {
+                LOGGER.log(Level.FINER, "no time left to wait for {0} on {1}", new Object[] {remote, node});
+                return false;
+            }
+            RemoteCheck.Result result;
+            long start = System.nanoTime();
+            try (Timeout timeout = Timeout.limit(wait + 10000, TimeUnit.MILLISECONDS)) {
+                result = RemoteCheck.awaitExit(ws.getChannel(), pollRequest(), wait);
+            } catch (Exception x) {
+                LOGGER.log(Level.FINE, "could not wait for " + remote + " on " + node + "; will poll", x);
+                return false;
+            } finally {
+                QuickCompletionBudget.refund(program, wait - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            }
+            recurrencePeriod = MIN_RECURRENCE_PERIOD; // as if already polling
+            polled(result);
+            return isDone();
+        }
+
+        private void watch(FilePath workspace) throws IOException, InterruptedException {
+            if (watchId == null) {
+                watchId = UUID.randomUUID().toString();
+            }
+            HandlerImpl h = new HandlerImpl();
+            handler = h;
+            watching = true;
+            try {
+                Watcher.start(watchId, controller, workspace, returnStdout, MAX_RETURN_STDOUT, COMPRESS_LOG, h);
+            } catch (IOException | InterruptedException | RuntimeException x) {
+                handler = null;
+                watching = false;
+                throw x;
+            }
+        }
+
+        /** Gives up on any {@link Watcher}, so that the next check polls or starts another one. */
+        private void stopWatching() {
+            handler = null;
+            watching = false;
+            if (watchId != null) {
+                Watcher.forget(watchId);
+            }
+        }
+
+        /** Finds the workspace without contacting the agent, looking it up again if the agent has reconnected. */
+        private @CheckForNull FilePath findWorkspace() {
+            Object connection = NodeLiveness.current(node);
+            if (ws != null && connection != wsConnection) {
+                LOGGER.log(Level.FINE, "{0} has been reconnected since {1} was found", new Object[] {node, remote});
+                ws = null;
+                // Any watcher died with the old channel, perhaps without a word; start another or poll:
+                stopWatching();
+            }
             if (ws == null) {
-                ws = FilePathUtils.find(node, remote);
+                ws = ComputerIndex.find(node, remote);
+                wsConnection = connection;
+                wsVerified = false;
                 if (ws == null) {
                     LOGGER.log(Level.FINE, "Jenkins is not running, no such node {0}, or it is offline", node);
                     return null;
                 }
             }
+            return ws;
+        }
+
+        private @CheckForNull FilePath getWorkspace() throws AbortException {
+            if (findWorkspace() == null) {
+                return null;
+            }
+            if (wsVerified) {
+                return ws; // NodeLiveness says the agent has stayed connected since we last looked
+            }
             boolean directory;
             try (Timeout timeout = Timeout.limit(10, TimeUnit.SECONDS)) {
                 directory = ws.isDirectory();
@@ -184,12 +444,14 @@ public abstract class DurableTaskStep extends Step {
                 // RequestAbortedException, ChannelClosedException, EOFException, wrappers thereof; InterruptedException if it just takes too long.
                 LOGGER.log(Level.FINE, node + " is evidently offline now", x);
                 ws = null;
+                stopWatching();
                 LOGGER.log(Level.FINE, "Cannot contact " + node + ": " + x); // TODO should we throttle messages of this type; e.g., exponentially slow them down?
                 return null;
             }
             if (!directory) {
                 throw new AbortException("missing workspace " + remote + " on " + node);
             }
+            wsVerified = wsConnection != null;
             return ws;
         }
 
@@ -231,6 +493,7 @@ public abstract class DurableTaskStep extends Step {
                         stopTask = null;
                         if (recurrencePeriod > 0) {
                             recurrencePeriod = 0;
+                            stopWatching();
                             logger().println("After 10s process did not stop");
                             getContext().onFailure(cause);
                         }
@@ -240,6 +503,7 @@ public abstract class DurableTaskStep extends Step {
             } else {
                 logger().println("Could not connect to " + node + " to send interrupt signal to process");
                 recurrencePeriod = 0;
+                stopWatching();
                 getContext().onFailure(cause);
             }
         }
@@ -257,6 +521,11 @@ public abstract class DurableTaskStep extends Step {
                 b.append("failed to look up workspace: ").append(x);
             }
             b.append("; recurrence period: ").append(recurrencePeriod).append("ms");
+            if (watching) {
+                b.append("; watching");
+            } else if (batched) {
+                b.append("; checked together with other tasks on ").append(node);
+            }
             ScheduledFuture<?> t = task;
             if (t != null) {
                 b.append("; check task scheduled; cancelled? ").append(t.isCancelled()).append(" done? ").append(t.isDone());
@@ -270,12 +539,18 @@ public abstract class DurableTaskStep extends Step {
 
         /** Checks for progress or completion of the external task. */
         @Override public void run() {
-            task = null;
+            synchronized (this) {
+                task = null;
+                checking = true;
+            }
             try {
                 check();
             } finally {
-                if (recurrencePeriod > 0) {
-                    task = Timer.get().schedule(this, recurrencePeriod, TimeUnit.MILLISECONDS);
+                synchronized (this) {
+                    checking = false;
+                    if (recurrencePeriod > 0 && !paused) {
+                        task = CheckScheduler.schedule(node, this, recurrencePeriod, TimeUnit.MILLISECONDS);
+                    }
                 }
             }
         }
@@ -285,56 +560,326 @@ public abstract class DurableTaskStep extends Step {
             if (recurrencePeriod == 0) { // from stop
                 return;
             }
-            final FilePath workspace;
-            try {
-                workspace = getWorkspace();
-            } catch (AbortException x) {
-                recurrencePeriod = 0;
-                getContext().onFailure(x);
+            checks.incrementAndGet();
+            LOGGER.log(Level.FINER, "checking {0} on {1}", new Object[] {remote, node});
+            if (NodeLiveness.isOffline(node)) {
+                pauseUntilOnline();
                 return;
             }
+            if (watching || (USE_WATCHING && !watchFailed)) {
+                final FilePath workspace;
+                try {
+                    workspace = getWorkspace();
+                } catch (AbortException x) {
+                    recurrencePeriod = 0;
+                    getContext().onFailure(x);
+                    return;
+                }
+                if (workspace == null) {
+                    return; // slave not yet ready, wait for another day
+                }
+                if (watching) {
+                    // Output and exit status are pushed by the agent; just keep an eye on the connection.
+                    recurrencePeriod = MAX_RECURRENCE_PERIOD;
+                    return;
+                }
+                if (USE_WATCHING && !watchFailed) { // otherwise the watcher was lost and this task is polled from now on
+                    try {
+                        watch(workspace);
+                        recurrencePeriod = MAX_RECURRENCE_PERIOD;
+                        return;
+                    } catch (Exception x) {
+                        LOGGER.log(Level.FINE, "could not start watching " + remote + " on " + node + "; will poll", x);
+                    }
+                }
+            }
+            FilePath workspace = findWorkspace();
             if (workspace == null) {
                 return; // slave not yet ready, wait for another day
             }
+            RemoteCheck.Result result;
+            // Existence of the workspace, log output, exit status, and captured output all in one round trip:
             try (Timeout timeout = Timeout.limit(10, TimeUnit.SECONDS)) {
-                        if (controller.writeLog(workspace, logger())) {
-                            getContext().saveState();
-                            recurrencePeriod = MIN_RECURRENCE_PERIOD; // got output, maybe we will get more soon
-                        } else {
-                            recurrencePeriod = Math.min((long) (recurrencePeriod * RECURRENCE_PERIOD_BACKOFF), MAX_RECURRENCE_PERIOD);
-                        }
-                        Integer exitCode = controller.exitStatus(workspace, launcher());
-                        if (exitCode == null) {
-                            LOGGER.log(Level.FINE, "still running in {0} on {1}", new Object[] {remote, node});
-                        } else {
-                            if (controller.writeLog(workspace, logger())) {
-                                LOGGER.log(Level.FINE, "last-minute output in {0} on {1}", new Object[] {remote, node});
-                            }
-                            if (returnStatus || exitCode == 0) {
-                                getContext().onSuccess(returnStatus ? exitCode : returnStdout ? new String(controller.getOutput(workspace, launcher()), encoding) : null);
-                            } else {
-                                if (returnStdout) {
-                                    logger().write(controller.getOutput(workspace, launcher())); // diagnostic
-                                }
-                                getContext().onFailure(new AbortException("script returned exit code " + exitCode));
-                            }
-                            recurrencePeriod = 0;
-                            controller.cleanup(workspace);
-                        }
+                result = RemoteCheck.check(workspace.getChannel(), Collections.singletonList(pollRequest())).get(0);
             } catch (Exception x) {
+                // RequestAbortedException, ChannelClosedException, EOFException, wrappers thereof; InterruptedException if it just takes too long.
                 LOGGER.log(Level.FINE, "could not check " + workspace, x);
                 ws = null;
                 LOGGER.log(Level.FINE, "Cannot contact " + node + ": " + x); // TODO as above
+                return;
+            }
+            boolean output = polled(result);
+            if (recurrencePeriod > 0) {
+                if (output) {
+                    recurrencePeriod = MIN_RECURRENCE_PERIOD; // got output, maybe we will get more soon
+                } else {
+                    recurrencePeriod = Math.min((long) (recurrencePeriod * RECURRENCE_PERIOD_BACKOFF), MAX_RECURRENCE_PERIOD);
+                }
+            }
+        }
+
+        /**
+         * Stops scheduling checks while the node is known to be offline, resuming them as soon as it is reconnected.
+         * Any {@link Watcher} will have died with the channel.
+         */
+        private void pauseUntilOnline() {
+            LOGGER.log(Level.FINE, "{0} is offline; pausing checks of {1}", new Object[] {node, remote});
+            checkPauses.incrementAndGet();
+            paused = true;
+            stopWatching();
+            ws = null;
+            NodeLiveness.whenOnline(node, new Runnable() {
+                @Override public void run() {
+                    synchronized (Execution.this) {
+                        paused = false;
+                        if (recurrencePeriod > 0) {
+                            recurrencePeriod = MIN_RECURRENCE_PERIOD;
+                            if (!checking) { // otherwise that check reschedules itself as it finishes, perhaps from right here
+                                task = CheckScheduler.submit(node, Execution.this);
+                            }
+                        }
+                    }
+                }
+            });
+        }
+
+        /**
+         * Completes the step once the process has exited and all of its log output has been copied.
+         * @param output the captured output, if {@link #returnStdout}
+         */
+        private void handleExit(int exitCode, @CheckForNull CapturedOutput output) throws IOException {
+            flushState();
+            if (returnStatus || exitCode == 0) {
+                String stdout = null;
+                if (returnStdout) {
+                    assert output != null;
+                    if (output.isTruncated()) {
+                        String message = "script output of " + output.size + " bytes exceeded the limit of " + output.data.length + " bytes";
+                        if (FAIL_ON_STDOUT_OVERFLOW) {
+                            getContext().onFailure(new AbortException(message));
+                            recurrencePeriod = 0;
+                            running.remove(this);
+                            stopWatching();
+                            return;
+                        }
+                        logger().println(message + "; truncating");
+                    }
+                    stdout = output.decode(encoding);
+                }
+                getContext().onSuccess(returnStatus ? exitCode : stdout);
+            } else {
+                if (returnStdout) {
+                    assert output != null;
+                    logger().write(output.data); // diagnostic
+                    if (output.isTruncated()) {
+                        logger().println();
+                        logger().println("(output truncated to the first " + output.data.length + " of " + output.size + " bytes)");
+                    }
+                }
+                getContext().onFailure(new AbortException("script returned exit code " + exitCode));
+            }
+            recurrencePeriod = 0;
+            running.remove(this);
+            stopWatching();
+        }
+
+        /**
+         * Called when log output has been copied, which means the controller has advanced.
+         * Saves program state according to {@link #SAVE_STATE_INTERVAL} and {@link #SAVE_STATE_BYTES}.
+         */
+        private synchronized void outputCopied(int bytes) {
+            if (bytes > 0) {
+                unsavedBytes += bytes;
+                unsaved = true;
+            } else if (!unsaved) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            boolean byTime = SAVE_STATE_INTERVAL > 0 && now - lastSaved >= TimeUnit.SECONDS.toMillis(SAVE_STATE_INTERVAL);
+            boolean bySize = SAVE_STATE_BYTES > 0 && unsavedBytes >= SAVE_STATE_BYTES;
+            if (byTime || bySize || (SAVE_STATE_INTERVAL <= 0 && SAVE_STATE_BYTES <= 0)) {
+                flushState();
+            } else {
+                stateSavesDeferred.incrementAndGet();
+                LOGGER.log(Level.FINER, "deferring save of {0} bytes of progress in {1} on {2}", new Object[] {unsavedBytes, remote, node});
+            }
+        }
+
+        /** Saves program state if any output has been copied since the last save. */
+        synchronized void flushState() {
+            if (!unsaved) {
+                return;
+            }
+            unsaved = false;
+            unsavedBytes = 0;
+            lastSaved = System.currentTimeMillis();
+            stateSaves.incrementAndGet();
+            getContext().saveState();
+        }
+
+        /** Receives events from a {@link Watcher}. */
+        private final class HandlerImpl implements Watcher.Handler {
+
+            @Override public void output(LogChunk data, Controller controller) throws IOException, InterruptedException {
+                if (handler != this) {
+                    return; // superseded; a newer watcher will send this output again
+                }
+                data.writeTo(logger());
+                Execution.this.controller = controller;
+                outputCopied(data.length());
+            }
+
+            @Override public void exited(final int code, final CapturedOutput output, Controller controller) throws IOException, InterruptedException {
+                if (handler != this) {
+                    return;
+                }
+                Execution.this.controller = controller;
+                if (recurrencePeriod == 0) { // already completed
+                    return;
+                }
+                // Leave watching set so that check does not start polling in the meantime.
+                // Do not make further remote calls from the thread delivering this event.
+                CheckScheduler.submit(node, new Runnable() {
+                    @Override public void run() {
+                        try {
+                            handleExit(code, output);
+                        } catch (Exception x) {
+                            recurrencePeriod = 0;
+                            getContext().onFailure(x);
+                            return;
+                        }
+                        cleanup();
+                    }
+                });
             }
+
+            @Override public void failed(Throwable cause) {
+                if (handler != this) {
+                    return;
+                }
+                LOGGER.log(Level.WARNING, "watching " + remote + " on " + node + " failed; will poll", cause);
+                watchFailed = true;
+                handler = null;
+                watching = false;
+            }
+
         }
 
         @Override public void onResume() {
-            setupTimer();
+            running.add(this);
+            if (RESUME_WINDOW > 0) {
+                recurrencePeriod = MIN_RECURRENCE_PERIOD;
+                // Do not have every task on every agent checked at the same moment, nor bother with agents not yet connected:
+                NodeLiveness.whenOnline(node, new Runnable() {
+                    @Override public void run() {
+                        if (recurrencePeriod > 0) {
+                            setupTimer(MIN_RECURRENCE_PERIOD + ThreadLocalRandom.current().nextLong(TimeUnit.SECONDS.toMillis(RESUME_WINDOW)));
+                        }
+                    }
+                });
+            } else {
+                setupTimer();
+            }
         }
 
         private void setupTimer() {
+            setupTimer(MIN_RECURRENCE_PERIOD);
+        }
+
+        /** @param delay milliseconds until the first check */
+        private void setupTimer(long delay) {
             recurrencePeriod = MIN_RECURRENCE_PERIOD;
-            task = Timer.get().schedule(this, recurrencePeriod, TimeUnit.MILLISECONDS);
+            if (USE_BATCHING && !USE_WATCHING) {
+                batched = true;
+                if (delay > MIN_RECURRENCE_PERIOD) {
+                    CheckScheduler.schedule(node, new Runnable() {
+                        @Override public void run() {
+                            NodePoller.register(node, Execution.this);
+                        }
+                    }, delay, TimeUnit.MILLISECONDS);
+                } else {
+                    NodePoller.register(node, this);
+                }
+            } else {
+                task = CheckScheduler.schedule(node, this, delay, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        /** Whether {@link NodePoller} may stop checking this task. */
+        boolean isDone() {
+            return recurrencePeriod == 0;
+        }
+
+        RemoteCheck.Request pollRequest() {
+            return new RemoteCheck.Request(controller, remote, returnStdout, MAX_RETURN_STDOUT, COMPRESS_LOG);
+        }
+
+        /** Deletes the control directory of the exited process, now that the step has been completed with its result. */
+        private void cleanup() {
+            try {
+                FilePath workspace = getWorkspace();
+                if (workspace != null) {
+                    controller.cleanup(workspace);
+                }
+            } catch (Exception x) {
+                LOGGER.log(Level.FINE, "could not clean up " + remote + " on " + node, x);
+            }
+        }
+
+        /**
+         * Processes the result of a {@link RemoteCheck}, whether batched or not.
+         * @return true if there was new output
+         */
+        boolean polled(RemoteCheck.Result result) {
+            if (recurrencePeriod == 0) {
+                return false;
+            }
+            if (result.missing) {
+                recurrencePeriod = 0;
+                getContext().onFailure(new AbortException("missing workspace " + remote + " on " + node));
+                return false;
+            }
+            controller = result.controller;
+            boolean output = result.log.length() > 0;
+            try {
+                if (output) {
+                    result.log.writeTo(logger());
+                    outputCopied(result.log.length());
+                } else if (SAVE_STATE_INTERVAL > 0) {
+                    outputCopied(0); // in case a save was deferred and output has since stopped
+                }
+                if (result.error != null) {
+                    LOGGER.log(Level.FINE, "could not check {0} on {1}: {2}", new Object[] {remote, node, result.error});
+                } else if (result.exitCode == null) {
+                    LOGGER.log(Level.FINE, "still running in {0} on {1}", new Object[] {remote, node});
+                } else {
+                    try {
+                        handleExit(result.exitCode, result.output);
+                    } catch (Exception x) {
+                        // The process has exited either way, so do not handle that again on the next check.
+                        LOGGER.log(Level.WARNING, "could not complete " + remote + " on " + node + " after exit code " + result.exitCode, x);
+                        recurrencePeriod = 0;
+                        running.remove(this);
+                        stopWatching();
+                        getContext().onFailure(x);
+                    }
+                    // Not from the CPS VM thread, in case this is awaitQuickCompletion:
+                    CheckScheduler.submit(node, new Runnable() {
+                        @Override public void run() {
+                            cleanup();
+                        }
+                    });
+                }
+            } catch (Exception x) {
+                LOGGER.log(Level.FINE, "could not process check of " + remote + " on " + node, x);
+            }
+            return output;
+        }
+
+        /** Called when a batched check failed as a whole, for example because the agent is offline. */
+        void pollFailed(Exception x) {
+            ws = null;
+            LOGGER.log(Level.FINE, "Cannot contact " + node + ": " + x);
         }
 
         private static final long serialVersionUID = 1L;
@@ -0,0 +1,107 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.steps.durable_task;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterOutputStream;
+import javax.annotation.Nonnull;
+import org.jenkinsci.plugins.workflow.support.Counters;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * New log output of a task as sent from the agent, compressed if {@link DurableTaskStep#COMPRESS_LOG} was requested and it helps.
+ */
+@Restricted(NoExternalUse.class)
+public final class LogChunk implements Serializable {
+
+    /** Below this size compression is not attempted. */
+    private static final int MIN_COMPRESSIBLE = 256;
+
+    static final LogChunk EMPTY = new LogChunk(new byte[0], false, 0);
+
+    private final byte[] data;
+    private final boolean compressed;
+    private final int length;
+
+    private LogChunk(byte[] data, boolean compressed, int length) {
+        this.data = data;
+        this.compressed = compressed;
+        this.length = length;
+    }
+
+    /** Wraps output read on the agent, compressing it at the fastest level if requested. */
+    static LogChunk of(@Nonnull byte[] raw, boolean compress) throws IOException {
+        if (compress && raw.length >= MIN_COMPRESSIBLE) {
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try {
+                ByteArrayOutputStream buf = new ByteArrayOutputStream(raw.length / 4);
+                try (DeflaterOutputStream dos = new DeflaterOutputStream(buf, deflater)) {
+                    dos.write(raw);
+                }
+                byte[] deflated = buf.toByteArray();
+                if (deflated.length < raw.length) {
+                    return new LogChunk(deflated, true, raw.length);
+                }
+            } finally {
+                deflater.end();
+            }
+        }
+        return new LogChunk(raw, false, raw.length);
+    }
+
+    /** Number of bytes of actual log output. */
+    int length() {
+        return length;
+    }
+
+    /** Copies the output to the master-side log, decompressing as needed. */
+    void writeTo(@Nonnull OutputStream out) throws IOException {
+        if (compressed) {
+            Inflater inflater = new Inflater();
+            try {
+                InflaterOutputStream ios = new InflaterOutputStream(out, inflater);
+                ios.write(data);
+                ios.finish(); // not close, which would close out
+            } finally {
+                inflater.end();
+            }
+        } else {
+            out.write(data);
+        }
+        // looked up here rather than held statically, since chunks are also created on agents
+        Counters.get("durable_task_log_bytes_transferred_total").addAndGet(data.length);
+        Counters.get("durable_task_log_bytes_total").addAndGet(length);
+    }
+
+    private static final long serialVersionUID = 1L;
+
+}
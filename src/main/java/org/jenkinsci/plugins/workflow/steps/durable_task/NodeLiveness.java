@@ -0,0 +1,152 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.steps.durable_task;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.TaskListener;
+import hudson.remoting.Channel;
+import hudson.remoting.VirtualChannel;
+import hudson.slaves.ComputerListener;
+import hudson.slaves.OfflineCause;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.workflow.support.ComputerIndex;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Tracks which agents are connected, based on {@link ComputerListener} and {@link Channel} events,
+ * so that running durable tasks need not contact an agent merely to find out whether it is still there.
+ * Nodes for which no event has been seen since startup (such as the master) are reported as unknown,
+ * and callers then behave as if there were no tracking.
+ */
+@Restricted(NoExternalUse.class)
+@Extension public final class NodeLiveness extends ComputerListener {
+
+    private static final Logger LOGGER = Logger.getLogger(NodeLiveness.class.getName());
+
+    /** One connection of an agent; compared by identity. */
+    private static final class Connection {
+        volatile boolean open = true;
+    }
+
+    /** keys are node names; values are the latest connections */
+    private static final ConcurrentMap<String,Connection> connections = new ConcurrentHashMap<>();
+
+    /** keys are node names; values are things to run once they are next online */
+    private static final ConcurrentMap<String,List<Runnable>> waiters = new ConcurrentHashMap<>();
+
+    /**
+     * Gets a token representing the current connection to a node.
+     * As long as the same token is returned, the node has stayed connected.
+     * @return null if the node is offline or its state is unknown
+     */
+    static @CheckForNull Object current(@Nonnull String node) {
+        Connection connection = connections.get(node);
+        return connection != null && connection.open ? connection : null;
+    }
+
+    /** Whether a node is known to be disconnected. */
+    static boolean isOffline(@Nonnull String node) {
+        Connection connection = connections.get(node);
+        return connection != null && !connection.open;
+    }
+
+    /** Whether a node currently exists and is connected, regardless of whether any event has been seen for it. */
+    static boolean isOnline(@Nonnull String node) {
+        if (isOffline(node)) {
+            return false;
+        }
+        if (node.isEmpty()) {
+            return Jenkins.getInstance() != null; // master, which need not even have a computer
+        }
+        Computer c = ComputerIndex.getComputer(node);
+        return c != null && c.isOnline();
+    }
+
+    /** Runs something once the node is next online, or right away if it already is. */
+    static void whenOnline(@Nonnull String node, @Nonnull Runnable task) {
+        List<Runnable> tasks = waiters.get(node);
+        if (tasks == null) {
+            List<Runnable> created = new CopyOnWriteArrayList<>();
+            tasks = waiters.putIfAbsent(node, created);
+            if (tasks == null) {
+                tasks = created;
+            }
+        }
+        tasks.add(task);
+        if (isOnline(node)) { // already, or came back in the meantime
+            wake(node);
+        }
+    }
+
+    private static void wake(String node) {
+        List<Runnable> tasks = waiters.remove(node);
+        if (tasks != null) {
+            for (Runnable task : tasks) {
+                try {
+                    task.run();
+                } catch (RuntimeException x) {
+                    LOGGER.log(Level.WARNING, null, x);
+                }
+            }
+        }
+    }
+
+    @Override public void onOnline(Computer c, TaskListener listener) throws IOException, InterruptedException {
+        final String node = c.getName();
+        final Connection connection = new Connection();
+        VirtualChannel channel = c.getChannel();
+        if (channel instanceof Channel) {
+            ((Channel) channel).addListener(new Channel.Listener() {
+                @Override public void onClosed(Channel channel, IOException cause) {
+                    LOGGER.log(Level.FINE, "channel to {0} closed", node);
+                    connection.open = false;
+                }
+            });
+        }
+        connections.put(node, connection);
+        LOGGER.log(Level.FINE, "{0} is online", node);
+        wake(node);
+    }
+
+    @Override public void onOffline(Computer c, OfflineCause cause) {
+        Connection connection = connections.get(c.getName());
+        if (connection != null) {
+            LOGGER.log(Level.FINE, "{0} is offline", c.getName());
+            connection.open = false;
+        }
+    }
+
+}
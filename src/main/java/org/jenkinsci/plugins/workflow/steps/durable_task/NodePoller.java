@@ -0,0 +1,230 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.steps.durable_task;
+
+import hudson.model.Computer;
+import hudson.remoting.VirtualChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nonnull;
+import org.jenkinsci.plugins.workflow.support.ComputerIndex;
+import org.jenkinsci.plugins.workflow.support.Counters;
+import org.jenkinsci.plugins.workflow.support.concurrent.Timeout;
+
+/**
+ * Checks all running durable tasks on one node together.
+ * Each tick makes a single remote call which collects new log output and exit codes for every registered {@link DurableTaskStep.Execution},
+ * so that remoting overhead grows with the number of nodes rather than the number of steps.
+ * Used when {@link DurableTaskStep#USE_BATCHING} is set.
+ */
+final class NodePoller implements Runnable {
+
+    private static final Logger LOGGER = Logger.getLogger(NodePoller.class.getName());
+
+    private static final long MIN_RECURRENCE_PERIOD = 250; // ¼s
+    private static final long MAX_RECURRENCE_PERIOD = 15000; // 15s
+    private static final float RECURRENCE_PERIOD_BACKOFF = 1.2f;
+
+    private static final AtomicLong batches = Counters.get("durable_task_check_batches_total");
+    private static final AtomicLong checkPauses = Counters.get("durable_task_check_pauses_total");
+
+    /** keys are node names as in {@link DurableTaskStep.Execution#node} */
+    private static final ConcurrentMap<String,NodePoller> pollers = new ConcurrentHashMap<>();
+
+    /**
+     * Starts checking a task as part of the batch for its node.
+     * It is dropped once it reports that it is done.
+     */
+    static void register(@Nonnull String node, @Nonnull DurableTaskStep.Execution execution) {
+        while (true) {
+            NodePoller poller = pollers.get(node);
+            if (poller == null) {
+                NodePoller created = new NodePoller(node);
+                poller = pollers.putIfAbsent(node, created);
+                if (poller == null) {
+                    poller = created;
+                }
+            }
+            if (poller.add(execution)) {
+                return;
+            }
+            // That one was just retired; try again with a fresh one.
+            pollers.remove(node, poller);
+        }
+    }
+
+    private final String node;
+    private final Set<DurableTaskStep.Execution> executions = new LinkedHashSet<>();
+    private long recurrencePeriod = MIN_RECURRENCE_PERIOD;
+    private ScheduledFuture<?> task;
+    private boolean running;
+    /** set while the node is known to be offline, until {@link NodeLiveness} reports it back */
+    private boolean paused;
+    /** set when a task is added during a tick, so the next one should come soon */
+    private boolean hurry;
+    /** set when there is nothing left to check; no further tasks may be added */
+    private boolean retired;
+
+    private NodePoller(String node) {
+        this.node = node;
+    }
+
+    private synchronized boolean add(DurableTaskStep.Execution execution) {
+        if (retired) {
+            return false;
+        }
+        executions.add(execution);
+        if (running) {
+            hurry = true;
+        } else if (paused) {
+            // checked along with the rest once the node is back
+        } else if (task == null || task.getDelay(TimeUnit.MILLISECONDS) > MIN_RECURRENCE_PERIOD) {
+            if (task != null) {
+                task.cancel(false);
+            }
+            recurrencePeriod = MIN_RECURRENCE_PERIOD;
+            task = CheckScheduler.schedule(node, this, recurrencePeriod, TimeUnit.MILLISECONDS);
+        }
+        return true;
+    }
+
+    @Override public void run() {
+        if (NodeLiveness.isOffline(node)) {
+            pauseUntilOnline();
+            return;
+        }
+        batches.incrementAndGet();
+        List<DurableTaskStep.Execution> batch;
+        synchronized (this) {
+            task = null;
+            running = true;
+            batch = new ArrayList<>(executions);
+        }
+        boolean output = false;
+        try {
+            output = check(batch);
+        } finally {
+            synchronized (this) {
+                running = false;
+                Iterator<DurableTaskStep.Execution> it = executions.iterator();
+                while (it.hasNext()) {
+                    if (it.next().isDone()) {
+                        it.remove();
+                    }
+                }
+                if (executions.isEmpty()) {
+                    retired = true;
+                    pollers.remove(node, this);
+                } else {
+                    if (output || hurry) {
+                        recurrencePeriod = MIN_RECURRENCE_PERIOD;
+                    } else {
+                        recurrencePeriod = Math.min((long) (recurrencePeriod * RECURRENCE_PERIOD_BACKOFF), MAX_RECURRENCE_PERIOD);
+                    }
+                    hurry = false;
+                    task = CheckScheduler.schedule(node, this, recurrencePeriod, TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops scheduling ticks while the node is known to be offline, resuming them as soon as it is reconnected.
+     * Unlike a failed tick, this makes no remote call at all.
+     */
+    private void pauseUntilOnline() {
+        LOGGER.log(Level.FINE, "{0} is offline; pausing checks of its tasks", node);
+        checkPauses.incrementAndGet();
+        synchronized (this) {
+            task = null;
+            paused = true;
+        }
+        NodeLiveness.whenOnline(node, new Runnable() {
+            @Override public void run() {
+                synchronized (NodePoller.this) {
+                    paused = false;
+                    if (!retired && !running && task == null) {
+                        recurrencePeriod = MIN_RECURRENCE_PERIOD;
+                        task = CheckScheduler.submit(node, NodePoller.this);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Checks one batch.
+     * @return true if any task produced output
+     */
+    private boolean check(List<DurableTaskStep.Execution> batch) {
+        Computer c = ComputerIndex.getComputer(node);
+        VirtualChannel channel = c != null ? c.getChannel() : null;
+        if (channel == null) {
+            LOGGER.log(Level.FINE, "Jenkins is not running, no such node {0}, or it is offline", node);
+            return false;
+        }
+        List<DurableTaskStep.Execution> live = new ArrayList<>();
+        List<RemoteCheck.Request> requests = new ArrayList<>();
+        for (DurableTaskStep.Execution execution : batch) {
+            if (!execution.isDone()) {
+                live.add(execution);
+                requests.add(execution.pollRequest());
+            }
+        }
+        if (live.isEmpty()) {
+            return false;
+        }
+        List<RemoteCheck.Result> results;
+        try (Timeout timeout = Timeout.limit(10, TimeUnit.SECONDS)) {
+            results = RemoteCheck.check(channel, requests);
+        } catch (Exception x) {
+            LOGGER.log(Level.FINE, "could not check " + live.size() + " tasks on " + node, x);
+            for (DurableTaskStep.Execution execution : live) {
+                execution.pollFailed(x);
+            }
+            return false;
+        }
+        boolean output = false;
+        for (int i = 0; i < live.size(); i++) {
+            output |= live.get(i).polled(results.get(i));
+        }
+        return output;
+    }
+
+    @Override public String toString() {
+        return "NodePoller[" + node + "]";
+    }
+
+}
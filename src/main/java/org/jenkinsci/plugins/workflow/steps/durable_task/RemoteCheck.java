@@ -0,0 +1,188 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.steps.durable_task;
+
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import jenkins.security.MasterToSlaveCallable;
+import org.jenkinsci.plugins.durabletask.Controller;
+
+/**
+ * Checks on one or more durable tasks in a single round trip to their agent.
+ * For each task this verifies the workspace, copies new log output, reads the exit status,
+ * and once the process has exited also collects captured output,
+ * all of which would otherwise be separate remote calls.
+ * Cleanup is left to the master once it has handled the exit status,
+ * since until then a lost response would leave nothing on the agent to check again.
+ */
+final class RemoteCheck {
+
+    private static final Logger LOGGER = Logger.getLogger(RemoteCheck.class.getName());
+
+    /**
+     * Checks some tasks, all in workspaces on the given channel.
+     * @return results in the same order as the requests
+     */
+    static @Nonnull List<Result> check(@Nonnull VirtualChannel channel, @Nonnull List<Request> requests) throws IOException, InterruptedException {
+        return channel.call(new Check(requests, 0));
+    }
+
+    /**
+     * Checks one task, first waiting on the agent for up to the given time for the process to exit.
+     * If it has not exited by then, the result is as from {@link #check}.
+     */
+    static @Nonnull Result awaitExit(@Nonnull VirtualChannel channel, @Nonnull Request request, long wait) throws IOException, InterruptedException {
+        return channel.call(new Check(Collections.singletonList(request), wait)).get(0);
+    }
+
+    /** What to check for one task. */
+    static final class Request implements Serializable {
+
+        final Controller controller;
+        final String remote;
+        final boolean captureOutput;
+        /** limit on captured output in bytes, or zero */
+        final long maxOutput;
+        /** whether to compress log output */
+        final boolean compress;
+
+        Request(Controller controller, String remote, boolean captureOutput, long maxOutput, boolean compress) {
+            this.controller = controller;
+            this.remote = remote;
+            this.captureOutput = captureOutput;
+            this.maxOutput = maxOutput;
+            this.compress = compress;
+        }
+
+        private static final long serialVersionUID = 1L;
+
+    }
+
+    /** What was found for one task. */
+    static final class Result implements Serializable {
+
+        /** the controller as updated on the agent, with an advanced log position */
+        Controller controller;
+        /** whether {@link Request#remote} is no longer a directory */
+        boolean missing;
+        /** new log output, possibly empty */
+        LogChunk log = LogChunk.EMPTY;
+        /** set once the process has exited */
+        @CheckForNull Integer exitCode;
+        /** set once the process has exited, if {@link Request#captureOutput} */
+        @CheckForNull CapturedOutput output;
+        /** a description of a problem checking this task, if any */
+        @CheckForNull String error;
+
+        private static final long serialVersionUID = 1L;
+
+    }
+
+    private static final class Check extends MasterToSlaveCallable<List<Result>, RuntimeException> {
+
+        private static final long MIN_WAIT_INTERVAL = 10; // ms
+        private static final long MAX_WAIT_INTERVAL = 100; // ms
+
+        private final List<Request> requests;
+        /** milliseconds to wait for the processes to exit */
+        private final long wait;
+
+        Check(List<Request> requests, long wait) {
+            this.requests = requests;
+            this.wait = wait;
+        }
+
+        @Override public List<Result> call() throws RuntimeException {
+            Launcher launcher = new Launcher.LocalLauncher(TaskListener.NULL);
+            List<Result> results = new ArrayList<>(requests.size());
+            for (Request request : requests) {
+                Result result = new Result();
+                result.controller = request.controller;
+                FilePath workspace = new FilePath(new File(request.remote));
+                ByteArrayOutputStream buf = new ByteArrayOutputStream();
+                try {
+                    if (!workspace.isDirectory()) {
+                        result.missing = true;
+                    } else {
+                        if (wait > 0) {
+                            awaitExit(request.controller, workspace, launcher);
+                        }
+                        request.controller.writeLog(workspace, buf);
+                        result.exitCode = request.controller.exitStatus(workspace, launcher);
+                        if (result.exitCode != null) {
+                            request.controller.writeLog(workspace, buf); // last-minute output
+                            if (request.captureOutput) {
+                                result.output = CapturedOutput.capture(request.controller, workspace, launcher, request.maxOutput);
+                            }
+                        }
+                    }
+                } catch (Exception x) {
+                    result.error = x.toString();
+                }
+                // Even after an error, since the controller may already have advanced past this output.
+                try {
+                    result.log = LogChunk.of(buf.toByteArray(), request.compress);
+                } catch (IOException x) {
+                    throw new IllegalStateException(x); // should not happen when writing to memory
+                }
+                results.add(result);
+            }
+            return results;
+        }
+
+        private void awaitExit(Controller controller, FilePath workspace, Launcher launcher) throws IOException {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(wait);
+            long interval = MIN_WAIT_INTERVAL;
+            try {
+                while (controller.exitStatus(workspace, launcher) == null && System.nanoTime() < deadline) {
+                    Thread.sleep(interval);
+                    interval = Math.min(interval * 2, MAX_WAIT_INTERVAL);
+                }
+            } catch (InterruptedException x) {
+                Thread.currentThread().interrupt(); // give up waiting but still report what we have
+            }
+        }
+
+        private static final long serialVersionUID = 1L;
+
+    }
+
+    private RemoteCheck() {}
+
+}
@@ -0,0 +1,308 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.steps.durable_task;
+
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.TaskListener;
+import hudson.remoting.Channel;
+import hudson.remoting.VirtualChannel;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import jenkins.security.MasterToSlaveCallable;
+import org.jenkinsci.plugins.durabletask.Controller;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Pushes output and exit status of a durable task from the agent to the master as they appear.
+ * A thread on the agent repeatedly consults the {@link Controller} locally and sends events to a {@link Receiver},
+ * which the master exports once per channel and which passes them on to the {@link Handler} registered for the task.
+ * Handlers are forgotten once the process exits, the watcher fails or is replaced, or the channel is closed,
+ * so nothing exported keeps a finished step reachable.
+ * Every callback carries the controller as updated on the agent,
+ * so that the master can adopt its log position and fall back to polling without duplicating output should the channel be closed.
+ * Each watcher is identified by the master, so that starting another for the same task (for example after a timeout) stops the old one.
+ */
+@Restricted(NoExternalUse.class)
+public final class Watcher {
+
+    private static final Logger LOGGER = Logger.getLogger(Watcher.class.getName());
+
+    private static final long MIN_DELAY = 100;
+    private static final long MAX_DELAY = 1000;
+
+    /**
+     * Master-side handler of events pushed for one task.
+     * Calls are made synchronously, in order, from a single agent thread.
+     */
+    public interface Handler {
+
+        /** New log output was produced. */
+        void output(@Nonnull LogChunk data, @Nonnull Controller controller) throws IOException, InterruptedException;
+
+        /** The process exited; all of its log output has already been sent. */
+        void exited(int code, @CheckForNull CapturedOutput output, @Nonnull Controller controller) throws IOException, InterruptedException;
+
+        /** The watcher stopped for some reason other than the channel being closed; the master should poll instead. */
+        void failed(@Nonnull Throwable cause);
+
+    }
+
+    /** Exported to agents once per channel; events are tagged with the key of the watcher sending them. */
+    public interface Receiver {
+
+        void output(@Nonnull String key, @Nonnull LogChunk data, @Nonnull Controller controller) throws IOException, InterruptedException;
+
+        void exited(@Nonnull String key, int code, @CheckForNull CapturedOutput output, @Nonnull Controller controller) throws IOException, InterruptedException;
+
+        void failed(@Nonnull String key, @Nonnull Throwable cause);
+
+    }
+
+    /** Passes events on to the handlers registered on one channel. */
+    private static final class Dispatcher implements Receiver {
+
+        /** keys are from {@link #key} */
+        final ConcurrentMap<String,Handler> handlers = new ConcurrentHashMap<>();
+        /** exported form of this */
+        Receiver exported;
+
+        @Override public void output(String key, LogChunk data, Controller controller) throws IOException, InterruptedException {
+            Handler handler = handlers.get(key);
+            if (handler != null) {
+                handler.output(data, controller);
+            }
+        }
+
+        @Override public void exited(String key, int code, CapturedOutput output, Controller controller) throws IOException, InterruptedException {
+            Handler handler = handlers.remove(key);
+            if (handler != null) {
+                handler.exited(code, output, controller);
+            }
+        }
+
+        @Override public void failed(String key, Throwable cause) {
+            Handler handler = handlers.remove(key);
+            if (handler != null) {
+                handler.failed(cause);
+            }
+        }
+
+    }
+
+    /** Distinguishes successive watchers of one task, so that a late event from a replaced one is not taken for one from its successor. */
+    private static final AtomicLong generation = new AtomicLong();
+
+    private static String key(String id, long generation) {
+        return id + "#" + generation;
+    }
+
+    /** Receivers exported so far, by channel; guarded by itself. */
+    private static final Map<VirtualChannel,Dispatcher> dispatchers = new HashMap<>();
+
+    private static Dispatcher dispatcher(final VirtualChannel channel) {
+        synchronized (dispatchers) {
+            Dispatcher dispatcher = dispatchers.get(channel);
+            if (dispatcher == null) {
+                dispatcher = new Dispatcher();
+                dispatcher.exported = channel.export(Receiver.class, dispatcher);
+                dispatchers.put(channel, dispatcher);
+                if (channel instanceof Channel) {
+                    ((Channel) channel).addListener(new Channel.Listener() {
+                        @Override public void onClosed(Channel c, IOException cause) {
+                            synchronized (dispatchers) {
+                                dispatchers.remove(channel);
+                            }
+                        }
+                    });
+                    if (((Channel) channel).isClosingOrClosed()) { // too late for the listener
+                        dispatchers.remove(channel);
+                    }
+                }
+            }
+            return dispatcher;
+        }
+    }
+
+    /**
+     * Starts watching a task on the agent hosting the workspace.
+     * Returns once the agent thread has been started.
+     * @param id identifies the task; any watcher previously started with the same ID stops, and its handler is forgotten
+     * @param captureOutput whether to send {@link Controller#getOutput} upon exit
+     * @param maxOutput limit on captured output in bytes, or zero
+     * @param compress whether to compress log output
+     */
+    static void start(@Nonnull String id, @Nonnull Controller controller, @Nonnull FilePath workspace, boolean captureOutput, long maxOutput, boolean compress, @Nonnull Handler handler) throws IOException, InterruptedException {
+        VirtualChannel channel = workspace.getChannel();
+        forget(id);
+        Dispatcher dispatcher = dispatcher(channel);
+        String key = key(id, generation.incrementAndGet());
+        dispatcher.handlers.put(key, handler);
+        try {
+            channel.call(new Start(id, key, controller, workspace.getRemote(), captureOutput, maxOutput, compress, dispatcher.exported));
+        } catch (IOException | InterruptedException | RuntimeException x) {
+            dispatcher.handlers.remove(key);
+            throw x;
+        }
+    }
+
+    /**
+     * Stops passing on events from a watcher, for example because the master has given up on it.
+     * Any agent thread still running for it is stopped once another watcher is started with the same ID, or the process exits.
+     */
+    static void forget(@Nonnull String id) {
+        String prefix = id + "#";
+        synchronized (dispatchers) {
+            for (Dispatcher dispatcher : dispatchers.values()) {
+                Iterator<String> keys = dispatcher.handlers.keySet().iterator();
+                while (keys.hasNext()) {
+                    if (keys.next().startsWith(prefix)) {
+                        keys.remove();
+                    }
+                }
+            }
+        }
+    }
+
+    /** Watchers running on this agent, by ID. */
+    private static final ConcurrentMap<String,Loop> loops = new ConcurrentHashMap<>();
+
+    private static final class Start extends MasterToSlaveCallable<Void, RuntimeException> {
+
+        private final String id;
+        private final String key;
+        private final Controller controller;
+        private final String remote;
+        private final boolean captureOutput;
+        private final long maxOutput;
+        private final boolean compress;
+        private final Receiver receiver;
+
+        Start(String id, String key, Controller controller, String remote, boolean captureOutput, long maxOutput, boolean compress, Receiver receiver) {
+            this.id = id;
+            this.key = key;
+            this.controller = controller;
+            this.remote = remote;
+            this.captureOutput = captureOutput;
+            this.maxOutput = maxOutput;
+            this.compress = compress;
+            this.receiver = receiver;
+        }
+
+        @Override public Void call() throws RuntimeException {
+            Loop loop = new Loop(id, key, controller, remote, captureOutput, maxOutput, compress, receiver, Channel.current());
+            loops.put(id, loop); // any previous loop for this ID will notice it has been replaced
+            Thread t = new Thread(loop, "Watching " + remote);
+            t.setDaemon(true);
+            t.start();
+            return null;
+        }
+
+        private static final long serialVersionUID = 1L;
+
+    }
+
+    private static final class Loop implements Runnable {
+
+        private final String id;
+        private final String key;
+        private final Controller controller;
+        private final String remote;
+        private final boolean captureOutput;
+        private final long maxOutput;
+        private final boolean compress;
+        private final Receiver receiver;
+        private final @CheckForNull Channel channel;
+
+        Loop(String id, String key, Controller controller, String remote, boolean captureOutput, long maxOutput, boolean compress, Receiver receiver, @CheckForNull Channel channel) {
+            this.id = id;
+            this.key = key;
+            this.controller = controller;
+            this.remote = remote;
+            this.captureOutput = captureOutput;
+            this.maxOutput = maxOutput;
+            this.compress = compress;
+            this.receiver = receiver;
+            this.channel = channel;
+        }
+
+        @Override public void run() {
+            FilePath workspace = new FilePath(new File(remote));
+            Launcher launcher = new Launcher.LocalLauncher(TaskListener.NULL);
+            ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            long delay = MIN_DELAY;
+            try {
+                while (loops.get(id) == this) {
+                    if (controller.writeLog(workspace, buf)) {
+                        receiver.output(key, LogChunk.of(buf.toByteArray(), compress), controller);
+                        buf.reset();
+                        delay = MIN_DELAY;
+                    }
+                    Integer exitCode = controller.exitStatus(workspace, launcher);
+                    if (exitCode != null) {
+                        if (controller.writeLog(workspace, buf)) {
+                            receiver.output(key, LogChunk.of(buf.toByteArray(), compress), controller);
+                        }
+                        receiver.exited(key, exitCode, captureOutput ? CapturedOutput.capture(controller, workspace, launcher, maxOutput) : null, controller);
+                        return;
+                    }
+                    Thread.sleep(delay);
+                    delay = Math.min(delay * 2, MAX_DELAY);
+                }
+                LOGGER.log(Level.FINE, "replaced watcher of {0}", remote);
+            } catch (Exception x) {
+                if (channel == null || channel.isClosingOrClosed()) {
+                    // The master falls back to polling once it notices the channel is gone.
+                    LOGGER.log(Level.FINE, "stopped watching " + remote, x);
+                    return;
+                }
+                LOGGER.log(Level.WARNING, "stopped watching " + remote, x);
+                try {
+                    receiver.failed(key, x);
+                } catch (RuntimeException x2) { // the channel may be going down after all
+                    LOGGER.log(Level.FINE, "could not report failure watching " + remote, x2);
+                }
+            } finally {
+                loops.remove(id, this);
+            }
+        }
+
+    }
+
+    private Watcher() {}
+
+}
@@ -0,0 +1,97 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.support;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.Computer;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import hudson.slaves.ComputerListener;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.workflow.FilePathUtils;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Keeps computers by node name, since {@link Jenkins#getComputer} and {@link FilePathUtils#find} iterate over all of them,
+ * which adds up when many pickles or running steps look up their agents at once.
+ */
+@Restricted(NoExternalUse.class)
+@Extension public final class ComputerIndex extends ComputerListener {
+
+    /** keys are node names; values are their computers as last looked up */
+    private static final ConcurrentMap<String,Computer> computers = new ConcurrentHashMap<String,Computer>();
+
+    /** Like {@link Jenkins#getComputer} but without a linear search in the usual case. */
+    @SuppressFBWarnings(value="RCN_REDUNDANT_NULLCHECK_OF_NONNULL_VALUE", justification="TODO 1.653+ switch to Jenkins.getInstanceOrNull")
+    public static @CheckForNull Computer getComputer(@Nonnull String node) {
+        Computer c = computers.get(node);
+        if (c != null && c.getNode() != null) {
+            return c;
+        }
+        Jenkins j = Jenkins.getInstance();
+        if (j == null) {
+            return null;
+        }
+        c = j.getComputer(node);
+        if (c != null) {
+            computers.put(node, c);
+        } else {
+            computers.remove(node);
+        }
+        return c;
+    }
+
+    /** Like {@link FilePathUtils#find} but without a linear search in the usual case. */
+    @SuppressFBWarnings(value="RCN_REDUNDANT_NULLCHECK_OF_NONNULL_VALUE", justification="TODO 1.653+ switch to Jenkins.getInstanceOrNull")
+    public static @CheckForNull FilePath find(@Nonnull String node, @Nonnull String path) {
+        VirtualChannel channel;
+        if (node.isEmpty()) {
+            if (Jenkins.getInstance() == null) {
+                return null;
+            }
+            channel = FilePath.localChannel;
+        } else {
+            Computer c = getComputer(node);
+            channel = c != null ? c.getChannel() : null;
+        }
+        return channel != null ? new FilePath(channel, path) : null;
+    }
+
+    @Override public void onOnline(Computer c, TaskListener listener) {
+        computers.put(c.getName(), c);
+    }
+
+    @Override public void onConfigurationChange() { // computers may have been replaced or removed
+        computers.clear();
+    }
+
+}
@@ -0,0 +1,94 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.support;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nonnull;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Process-wide counters and gauges kept by the steps of this plugin, for diagnostics.
+ * They are all printed together by the node block metrics endpoint rather than by each step.
+ * Names follow Prometheus conventions, such as {@code durable_task_log_bytes_total}.
+ */
+@Restricted(NoExternalUse.class)
+public final class Counters {
+
+    /** A value computed when read. */
+    public interface Gauge {
+        long value();
+    }
+
+    private static final ConcurrentMap<String,AtomicLong> counters = new ConcurrentHashMap<String,AtomicLong>();
+    private static final ConcurrentMap<String,Gauge> gauges = new ConcurrentHashMap<String,Gauge>();
+
+    /** Gets a counter, creating it at zero if need be. */
+    public static @Nonnull AtomicLong get(@Nonnull String name) {
+        AtomicLong counter = counters.get(name);
+        if (counter == null) {
+            AtomicLong created = new AtomicLong();
+            counter = counters.putIfAbsent(name, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    /** Raises a counter to the given value if it is lower. */
+    public static void max(@Nonnull String name, long value) {
+        AtomicLong counter = get(name);
+        long max;
+        do {
+            max = counter.get();
+        } while (value > max && !counter.compareAndSet(max, value));
+    }
+
+    /** Defines a gauge, replacing any previous definition. */
+    public static void gauge(@Nonnull String name, @Nonnull Gauge gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /** Current values of all counters and gauges, by name. */
+    public static @Nonnull SortedMap<String,Long> snapshot() {
+        SortedMap<String,Long> values = new TreeMap<String,Long>();
+        for (Map.Entry<String,AtomicLong> entry : counters.entrySet()) {
+            values.put(entry.getKey(), entry.getValue().get());
+        }
+        for (Map.Entry<String,Gauge> entry : gauges.entrySet()) {
+            values.put(entry.getKey(), entry.getValue().value());
+        }
+        return values;
+    }
+
+    private Counters() {}
+
+}
@@ -26,11 +26,10 @@ package org.jenkinsci.plugins.workflow.support.pickles;
 
 import org.jenkinsci.plugins.workflow.pickles.Pickle;
 import com.google.common.util.concurrent.ListenableFuture;
-import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import hudson.Extension;
 import hudson.model.Computer;
-import jenkins.model.Jenkins;
 import org.jenkinsci.plugins.workflow.flow.FlowExecutionOwner;
+import org.jenkinsci.plugins.workflow.support.ComputerIndex;
 
 /**
  * Reference to {@link Computer}
@@ -46,15 +45,10 @@ public class ComputerPickle extends Pickle {
 
     @Override
     public ListenableFuture<Computer> rehydrate(FlowExecutionOwner owner) {
-        return new TryRepeatedly<Computer>(1) {
-            @SuppressFBWarnings(value="RCN_REDUNDANT_NULLCHECK_OF_NONNULL_VALUE", justification="TODO 1.653+ switch to Jenkins.getInstanceOrNull")
+        return new WakeableTryRepeatedly<Computer>(slave, 1) {
             @Override
             protected Computer tryResolve() {
-                Jenkins j = Jenkins.getInstance();
-                if (j == null) {
-                    return null;
-                }
-                return j.getComputer(slave);
+                return ComputerIndex.getComputer(slave);
             }
             @Override public String toString() {
                 return "Looking for computer named ‘" + slave + "’";
@@ -25,6 +25,7 @@
 package org.jenkinsci.plugins.workflow.support.pickles;
 
 import com.google.common.util.concurrent.ListenableFuture;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import hudson.AbortException;
 import hudson.Extension;
 import hudson.model.Executor;
@@ -40,6 +41,8 @@ import java.util.logging.Logger;
 import org.jenkinsci.plugins.workflow.flow.FlowExecutionOwner;
 import org.jenkinsci.plugins.workflow.pickles.Pickle;
 import org.jenkinsci.plugins.workflow.steps.durable_task.Messages;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
 
 /**
  * Persists an {@link Executor} as the {@link hudson.model.Queue.Task} it was running.
@@ -51,6 +54,33 @@ public class ExecutorPickle extends Pickle {
 
     private static final Logger LOGGER = Logger.getLogger(ExecutorPickle.class.getName());
 
+    /**
+     * Maximum number of rehydrated tasks to have scheduled but not yet started; zero for no limit.
+     * Waiting tasks are admitted in order of the estimated remaining time of their builds.
+     */
+    @SuppressFBWarnings(value="MS_SHOULD_BE_FINAL", justification="mutable for scripts")
+    @Restricted(NoExternalUse.class)
+    public static int MAX_IN_FLIGHT = Integer.getInteger(ExecutorPickle.class.getName() + ".MAX_IN_FLIGHT", 0);
+
+    /** Like {@link #MAX_IN_FLIGHT} but for tasks with any one label. */
+    @SuppressFBWarnings(value="MS_SHOULD_BE_FINAL", justification="mutable for scripts")
+    @Restricted(NoExternalUse.class)
+    public static int MAX_IN_FLIGHT_PER_LABEL = Integer.getInteger(ExecutorPickle.class.getName() + ".MAX_IN_FLIGHT_PER_LABEL", 0);
+
+    /** Like {@link #MAX_IN_FLIGHT} but for tasks last run on any one node. */
+    @SuppressFBWarnings(value="MS_SHOULD_BE_FINAL", justification="mutable for scripts")
+    @Restricted(NoExternalUse.class)
+    public static int MAX_IN_FLIGHT_PER_NODE = Integer.getInteger(ExecutorPickle.class.getName() + ".MAX_IN_FLIGHT_PER_NODE", 0);
+
+    /**
+     * Seconds an admitted task may stay in the queue before it stops counting against {@link #MAX_IN_FLIGHT} and related limits.
+     * A task blocked because its node or label is offline stops counting at once.
+     * Zero to keep counting until it starts.
+     */
+    @SuppressFBWarnings(value="MS_SHOULD_BE_FINAL", justification="mutable for scripts")
+    @Restricted(NoExternalUse.class)
+    public static long ADMISSION_TIMEOUT = Long.getLong(ExecutorPickle.class.getName() + ".ADMISSION_TIMEOUT", 300);
+
     private final Queue.Task task;
 
     private ExecutorPickle(Executor executor) {
@@ -70,18 +100,41 @@ public class ExecutorPickle extends Pickle {
     }
 
     @Override public ListenableFuture<Executor> rehydrate(final FlowExecutionOwner owner) {
-        return new TryRepeatedly<Executor>(1, 0) {
+        return new WakeableTryRepeatedly<Executor>(null, 0) {
             long itemID;
+            volatile RehydrationThrottle.Ticket ticket;
+            boolean requested;
             @Override
             protected Executor tryResolve() throws Exception {
+                try {
+                    Executor e = resolve();
+                    if (e != null) {
+                        RehydrationThrottle.release(ticket, true);
+                    }
+                    return e;
+                } catch (Exception x) {
+                    RehydrationThrottle.release(ticket, false);
+                    throw x;
+                }
+            }
+            private Executor resolve() throws Exception {
                 Queue.Item item;
                 if (itemID == 0) {
+                    if (!requested) {
+                        requested = true;
+                        ticket = RehydrationThrottle.request(task, owner, this);
+                    }
+                    if (ticket != null && !ticket.isAdmitted()) {
+                        LOGGER.log(Level.FINER, "{0} waiting for admission", task);
+                        return null;
+                    }
                     item = Queue.getInstance().schedule2(task, 0).getItem();
                     if (item == null) {
                         // TODO should also report when !ScheduleResult.created, since that is arguably an error
                         throw new IllegalStateException("queue refused " + task);
                     }
                     itemID = item.getId();
+                    waitFor(WakeableTryRepeatedly.queueKey(itemID));
                     LOGGER.log(Level.FINE, "{0} scheduled {1}", new Object[] {ExecutorPickle.this, item});
                 } else {
                     item = Queue.getInstance().getItem(itemID);
@@ -95,6 +148,7 @@ public class ExecutorPickle extends Pickle {
                 if (!future.isDone()) {
                     // TODO JENKINS-26130 we might be able to detect that the item is blocked on an agent which has been deleted (not just offline), and abort ourselves
                     LOGGER.log(Level.FINER, "{0} not yet started", item);
+                    RehydrationThrottle.checkStalled(ticket, item.getCauseOfBlockage());
                     return null;
                 }
 
@@ -142,9 +196,13 @@ public class ExecutorPickle extends Pickle {
                 } else {
                     LOGGER.log(Level.FINE, "no such item {0} to cancel", itemID);
                 }
+                RehydrationThrottle.release(ticket, false);
                 return super.cancel(mayInterruptIfRunning);
             }
             @Override public String toString() {
+                if (itemID == 0 && ticket != null) {
+                    return "Waiting to schedule " + ticket;
+                }
                 Queue.Item item = Queue.getInstance().getItem(itemID);
                 if (item != null) {
                     return "Trying to schedule " + task.getFullDisplayName() + "; blockage: " + item.getCauseOfBlockage();
@@ -30,6 +30,7 @@ import hudson.FilePath;
 import org.jenkinsci.plugins.workflow.FilePathUtils;
 import org.jenkinsci.plugins.workflow.flow.FlowExecutionOwner;
 import org.jenkinsci.plugins.workflow.pickles.Pickle;
+import org.jenkinsci.plugins.workflow.support.ComputerIndex;
 
 /**
  * @author Kohsuke Kawaguchi
@@ -46,10 +47,10 @@ public class FilePathPickle extends Pickle {
 
     @Override
     public ListenableFuture<FilePath> rehydrate(FlowExecutionOwner owner) {
-        return new TryRepeatedly<FilePath>(1) {
+        return new WakeableTryRepeatedly<FilePath>(slave, 1) {
             @Override
             protected FilePath tryResolve() {
-                return FilePathUtils.find(slave, path);
+                return ComputerIndex.find(slave, path);
             }
             @Override public String toString() {
                 return "Looking for path named ‘" + path + "’ on computer named ‘" + slave + "’";
@@ -0,0 +1,292 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.support.pickles;
+
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.Run;
+import hudson.model.queue.CauseOfBlockage;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import org.jenkinsci.plugins.workflow.flow.FlowExecutionOwner;
+
+/**
+ * Limits how many {@link ExecutorPickle}s may have their tasks in the queue at once,
+ * so that a restart with many running builds does not flood the queue with thousands of items.
+ * Limits may be set overall, per label, and per node; waiting pickles are admitted in order of the estimated remaining time of their builds,
+ * so that builds closest to completion resume first.
+ * A pickle counts against the limits from when it is admitted until its task starts running (or it gives up),
+ * or until it is found stalled in the queue: blocked on an offline node or label, or waiting longer than {@link ExecutorPickle#ADMISSION_TIMEOUT}.
+ * Stalled tasks stay in the queue; they merely stop holding back others.
+ * With no limits configured, nothing is tracked.
+ */
+final class RehydrationThrottle {
+
+    private static final Logger LOGGER = Logger.getLogger(RehydrationThrottle.class.getName());
+
+    /** nanoseconds between progress messages */
+    private static final long PROGRESS_INTERVAL = TimeUnit.SECONDS.toNanos(10);
+
+    /** guarded by the class, as is all other mutable state */
+    private static final PriorityQueue<Ticket> waiting = new PriorityQueue<Ticket>();
+    private static final Map<String,Integer> inFlightByLabel = new HashMap<String,Integer>();
+    private static final Map<String,Integer> inFlightByNode = new HashMap<String,Integer>();
+    private static int inFlight;
+    private static long requested, started, abandoned, stalled, sequence;
+    private static long lastProgress = System.nanoTime();
+    /** whether any ticket has had to wait since the queue of them was last empty */
+    private static boolean backlog;
+
+    static boolean isEnabled() {
+        return ExecutorPickle.MAX_IN_FLIGHT > 0 || ExecutorPickle.MAX_IN_FLIGHT_PER_LABEL > 0 || ExecutorPickle.MAX_IN_FLIGHT_PER_NODE > 0;
+    }
+
+    /**
+     * Asks to schedule a task.
+     * @param waker woken up once the ticket is admitted
+     * @return a ticket to check with {@link Ticket#isAdmitted} before scheduling, and to {@link #release} afterwards; or null if nothing is being limited
+     */
+    static @CheckForNull Ticket request(@Nonnull Queue.Task task, @Nonnull FlowExecutionOwner owner, @Nonnull WakeableTryRepeatedly<?> waker) {
+        if (!isEnabled()) {
+            return null;
+        }
+        Label label = task.getAssignedLabel();
+        Node node = task.getLastBuiltOn();
+        Ticket ticket = new Ticket(task, label != null ? label.getName() : "", node != null ? node.getNodeName() : null, remaining(owner), waker);
+        List<Ticket> admitted;
+        synchronized (RehydrationThrottle.class) {
+            ticket.sequence = sequence++;
+            requested++;
+            waiting.add(ticket);
+            admitted = dispatch();
+        }
+        wake(admitted);
+        return ticket;
+    }
+
+    /**
+     * Gives back a ticket, admitting others if possible.
+     * @param started whether its task got an executor, as opposed to failing or being canceled
+     */
+    static void release(@CheckForNull Ticket ticket, boolean started) {
+        if (ticket == null) {
+            return;
+        }
+        List<Ticket> admitted;
+        synchronized (RehydrationThrottle.class) {
+            if (ticket.released) {
+                return;
+            }
+            ticket.released = true;
+            if (ticket.admitted) {
+                if (!ticket.stalled) {
+                    free(ticket);
+                }
+            } else {
+                waiting.remove(ticket);
+            }
+            if (started) {
+                RehydrationThrottle.started++;
+            } else {
+                abandoned++;
+            }
+            admitted = dispatch();
+        }
+        wake(admitted);
+    }
+
+    /**
+     * Stops counting an admitted ticket whose task is not getting anywhere in the queue, admitting others if possible.
+     * @param cause why its queue item is not running, if known
+     */
+    static void checkStalled(@CheckForNull Ticket ticket, @CheckForNull CauseOfBlockage cause) {
+        if (ticket == null) {
+            return;
+        }
+        List<Ticket> admitted;
+        synchronized (RehydrationThrottle.class) {
+            if (!ticket.admitted || ticket.released || ticket.stalled) {
+                return;
+            }
+            boolean offline = cause instanceof CauseOfBlockage.BecauseNodeIsOffline || cause instanceof CauseOfBlockage.BecauseLabelIsOffline;
+            boolean expired = ExecutorPickle.ADMISSION_TIMEOUT > 0 && System.nanoTime() - ticket.admittedAt >= TimeUnit.SECONDS.toNanos(ExecutorPickle.ADMISSION_TIMEOUT);
+            if (!offline && !expired) {
+                return;
+            }
+            LOGGER.log(Level.FINE, "{0} stalled: {1}", new Object[] {ticket, cause != null ? cause.getShortDescription() : "timed out"});
+            ticket.stalled = true;
+            stalled++;
+            free(ticket);
+            admitted = dispatch();
+        }
+        wake(admitted);
+    }
+
+    private static void free(Ticket ticket) {
+        inFlight--;
+        decrement(inFlightByLabel, ticket.label);
+        decrement(inFlightByNode, ticket.node);
+    }
+
+    /** Milliseconds the build is expected to keep running, or {@link Long#MAX_VALUE} if unknown. */
+    private static long remaining(FlowExecutionOwner owner) {
+        try {
+            Queue.Executable exec = owner.getExecutable();
+            if (exec instanceof Run) {
+                Run<?,?> run = (Run<?,?>) exec;
+                long estimate = run.getEstimatedDuration();
+                if (estimate >= 0) {
+                    return estimate - (System.currentTimeMillis() - run.getStartTimeInMillis());
+                }
+            }
+        } catch (Exception x) {
+            LOGGER.log(Level.FINE, "could not estimate remaining time of " + owner, x);
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /** Admits whatever waiting tickets now fit, in priority order. */
+    private static List<Ticket> dispatch() {
+        List<Ticket> admitted = new ArrayList<Ticket>();
+        if (ExecutorPickle.MAX_IN_FLIGHT <= 0 || inFlight < ExecutorPickle.MAX_IN_FLIGHT) {
+            List<Ticket> ordered = new ArrayList<Ticket>(waiting.size());
+            while (!waiting.isEmpty()) {
+                ordered.add(waiting.poll());
+            }
+            Iterator<Ticket> it = ordered.iterator();
+            while (it.hasNext() && (ExecutorPickle.MAX_IN_FLIGHT <= 0 || inFlight < ExecutorPickle.MAX_IN_FLIGHT)) {
+                Ticket ticket = it.next();
+                if (fits(inFlightByLabel, ticket.label, ExecutorPickle.MAX_IN_FLIGHT_PER_LABEL) && fits(inFlightByNode, ticket.node, ExecutorPickle.MAX_IN_FLIGHT_PER_NODE)) {
+                    it.remove();
+                    ticket.admitted = true;
+                    ticket.admittedAt = System.nanoTime();
+                    inFlight++;
+                    increment(inFlightByLabel, ticket.label);
+                    increment(inFlightByNode, ticket.node);
+                    admitted.add(ticket);
+                }
+            }
+            waiting.addAll(ordered);
+        }
+        if (!waiting.isEmpty()) {
+            backlog = true;
+        }
+        if (backlog) {
+            long now = System.nanoTime();
+            boolean drained = waiting.isEmpty() && inFlight == 0;
+            if (drained || now - lastProgress >= PROGRESS_INTERVAL) {
+                lastProgress = now;
+                backlog = !drained;
+                LOGGER.log(Level.INFO, "Resuming executors: {0} started, {1} abandoned, {2} stalled, {3} scheduled, {4} waiting of {5}", new Object[] {started, abandoned, stalled, inFlight, waiting.size(), requested});
+            }
+        }
+        return admitted;
+    }
+
+    private static boolean fits(Map<String,Integer> counts, String key, int max) {
+        if (max <= 0 || key == null) {
+            return true;
+        }
+        Integer count = counts.get(key);
+        return count == null || count < max;
+    }
+
+    private static void increment(Map<String,Integer> counts, String key) {
+        if (key != null) {
+            Integer count = counts.get(key);
+            counts.put(key, count == null ? 1 : count + 1);
+        }
+    }
+
+    private static void decrement(Map<String,Integer> counts, String key) {
+        if (key != null) {
+            Integer count = counts.get(key);
+            if (count == null || count <= 1) {
+                counts.remove(key);
+            } else {
+                counts.put(key, count - 1);
+            }
+        }
+    }
+
+    private static void wake(List<Ticket> admitted) {
+        for (Ticket ticket : admitted) {
+            LOGGER.log(Level.FINE, "admitted {0}", ticket);
+            ticket.waker.wake();
+        }
+    }
+
+    static final class Ticket implements Comparable<Ticket> {
+
+        private final Queue.Task task;
+        private final String label;
+        private final @CheckForNull String node;
+        private final long remaining;
+        private final WakeableTryRepeatedly<?> waker;
+        private long sequence;
+        /** as {@link System#nanoTime} */
+        private long admittedAt;
+        private boolean admitted, released, stalled;
+
+        Ticket(Queue.Task task, String label, String node, long remaining, WakeableTryRepeatedly<?> waker) {
+            this.task = task;
+            this.label = label;
+            this.node = node;
+            this.remaining = remaining;
+            this.waker = waker;
+        }
+
+        boolean isAdmitted() {
+            synchronized (RehydrationThrottle.class) {
+                return admitted;
+            }
+        }
+
+        @Override public int compareTo(Ticket o) {
+            if (remaining != o.remaining) {
+                return remaining < o.remaining ? -1 : 1;
+            }
+            return sequence < o.sequence ? -1 : sequence == o.sequence ? 0 : 1;
+        }
+
+        @Override public String toString() {
+            return task.getFullDisplayName() + " (about " + (remaining == Long.MAX_VALUE ? "?" : remaining / 1000) + "s remaining)";
+        }
+
+    }
+
+    private RehydrationThrottle() {}
+
+}
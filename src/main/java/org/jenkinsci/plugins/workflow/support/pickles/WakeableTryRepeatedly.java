@@ -0,0 +1,249 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.support.pickles;
+
+import com.google.common.util.concurrent.AbstractFuture;
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.Queue;
+import hudson.model.TaskListener;
+import hudson.model.queue.QueueListener;
+import hudson.slaves.ComputerListener;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import jenkins.util.Timer;
+import org.jenkinsci.plugins.workflow.flow.FlowExecutionOwner;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Like {@link TryRepeatedly}, but woken up by the events which might let it succeed:
+ * a computer coming online, or a particular queue item leaving the queue.
+ * Between events it retries with a delay growing from one second up to {@link #MAX_DELAY}, as a safety net for missed events.
+ * As with {@link TryRepeatedly}, the waiting message is printed as soon as the first attempt fails; after that at most every {@link #MESSAGE_INTERVAL} seconds.
+ * <p>This is a separate class rather than a subclass of {@link TryRepeatedly}
+ * because that keeps its pending attempt and fixed delay private and reschedules itself,
+ * so a subclass could neither bring an attempt forward nor back off.
+ */
+@Restricted(NoExternalUse.class)
+public abstract class WakeableTryRepeatedly<V> extends AbstractFuture<V> {
+
+    private static final Logger LOGGER = Logger.getLogger(WakeableTryRepeatedly.class.getName());
+
+    /** maximum seconds between attempts in the absence of events */
+    private static final int MAX_DELAY = Integer.getInteger(WakeableTryRepeatedly.class.getName() + ".MAX_DELAY", 60);
+
+    /** seconds between messages about still waiting */
+    private static final long MESSAGE_INTERVAL = 300;
+
+    /** Key for something waiting on a queue item, rather than a node. */
+    static String queueKey(long id) {
+        return "\u0000queue#" + id;
+    }
+
+    /** keys are node names or {@link #queueKey}s; only keys with something waiting; modified while holding the map */
+    private static final ConcurrentMap<String,Set<WakeableTryRepeatedly<?>>> waiting = new ConcurrentHashMap<String,Set<WakeableTryRepeatedly<?>>>();
+
+    private volatile String key;
+    /** seconds until the next attempt after this one; guarded by this */
+    private int delay = 1;
+    /** guarded by this */
+    private @CheckForNull ScheduledFuture<?> next;
+    /** when the waiting message was last printed, if {@link #messaged} */
+    private volatile long lastMessage;
+    private volatile boolean messaged;
+
+    /**
+     * @param key the name of the node this is waiting for (null for the master, or if not yet known; see {@link #waitFor}), or a {@link #queueKey}
+     * @param initialDelay seconds before the first attempt
+     */
+    protected WakeableTryRepeatedly(@CheckForNull String key, int initialDelay) {
+        this.key = key != null ? key : "";
+        register();
+        synchronized (this) {
+            schedule(initialDelay);
+        }
+    }
+
+    /** Changes what this is waiting for. */
+    protected final void waitFor(@Nonnull String key) {
+        unregister();
+        this.key = key;
+        register();
+    }
+
+    private void register() {
+        synchronized (waiting) {
+            Set<WakeableTryRepeatedly<?>> set = waiting.get(key);
+            if (set == null) {
+                set = Collections.newSetFromMap(new ConcurrentHashMap<WakeableTryRepeatedly<?>,Boolean>());
+                waiting.put(key, set);
+            }
+            set.add(this);
+        }
+    }
+
+    /**
+     * Tries to obtain the value.
+     * @return null to try again later
+     */
+    protected abstract @CheckForNull V tryResolve() throws Exception;
+
+    /** The owner to which messages about still waiting should be printed, if any. */
+    protected @CheckForNull FlowExecutionOwner getOwner() {
+        return null;
+    }
+
+    protected void printWaitingMessage(@Nonnull TaskListener listener) {
+        listener.getLogger().println("Still waiting: " + this);
+    }
+
+    private void schedule(int seconds) {
+        next = Timer.get().schedule(new Runnable() {
+            @Override public void run() {
+                attempt();
+            }
+        }, seconds, TimeUnit.SECONDS);
+    }
+
+    private void attempt() {
+        synchronized (this) {
+            next = null;
+        }
+        if (isDone()) {
+            unregister();
+            return;
+        }
+        try {
+            V v = tryResolve();
+            if (v != null) {
+                unregister();
+                set(v);
+                return;
+            }
+        } catch (Throwable t) {
+            unregister();
+            setException(t);
+            return;
+        }
+        long now = System.nanoTime();
+        if (!messaged || TimeUnit.NANOSECONDS.toSeconds(now - lastMessage) >= MESSAGE_INTERVAL) {
+            messaged = true;
+            lastMessage = now;
+            FlowExecutionOwner owner = getOwner();
+            if (owner != null) {
+                try {
+                    printWaitingMessage(owner.getListener());
+                } catch (Exception x) {
+                    LOGGER.log(Level.WARNING, null, x);
+                }
+            }
+        }
+        synchronized (this) {
+            if (next == null && !isDone()) {
+                schedule(delay);
+                delay = Math.min(delay * 2, MAX_DELAY);
+            }
+        }
+    }
+
+    /** Tries again right away, unless an attempt is already in progress, in which case the next one comes soon. */
+    synchronized void wake() {
+        delay = 1;
+        if (next != null && next.cancel(false)) {
+            schedule(0);
+        }
+    }
+
+    private void unregister() {
+        synchronized (waiting) {
+            Set<WakeableTryRepeatedly<?>> set = waiting.get(key);
+            if (set != null && set.remove(this) && set.isEmpty()) {
+                waiting.remove(key);
+            }
+        }
+    }
+
+    /** Whether anything is waiting for the given key. */
+    static boolean isWaiting(@Nonnull String key) {
+        return waiting.containsKey(key);
+    }
+
+    @Override public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized (this) {
+            if (next != null) {
+                next.cancel(false);
+                next = null;
+            }
+        }
+        unregister();
+        return super.cancel(mayInterruptIfRunning);
+    }
+
+    private static void wake(@Nonnull String key) {
+        Set<WakeableTryRepeatedly<?>> set = waiting.get(key);
+        if (set != null) {
+            for (WakeableTryRepeatedly<?> t : set) {
+                LOGGER.log(Level.FINER, "waking {0}", t);
+                t.wake();
+            }
+        }
+    }
+
+    @Restricted(NoExternalUse.class)
+    @Extension public static final class ComputerListenerImpl extends ComputerListener {
+
+        @Override public void onOnline(Computer c, TaskListener listener) {
+            wake(c.getName());
+        }
+
+        @Override public void onConfigurationChange() { // perhaps a node was added
+            for (String key : waiting.keySet()) {
+                if (!key.startsWith("\u0000")) {
+                    wake(key);
+                }
+            }
+        }
+
+    }
+
+    @Restricted(NoExternalUse.class)
+    @Extension public static final class QueueListenerImpl extends QueueListener {
+
+        @Override public void onLeft(Queue.LeftItem li) {
+            wake(queueKey(li.getId()));
+        }
+
+    }
+
+}
@@ -25,16 +25,15 @@
 package org.jenkinsci.plugins.workflow.support.pickles;
 
 import com.google.common.util.concurrent.ListenableFuture;
-import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import hudson.Extension;
 import hudson.FilePath;
 import hudson.model.Computer;
 import hudson.remoting.VirtualChannel;
 import hudson.slaves.WorkspaceList;
-import jenkins.model.Jenkins;
 import org.jenkinsci.plugins.workflow.FilePathUtils;
 import org.jenkinsci.plugins.workflow.flow.FlowExecutionOwner;
 import org.jenkinsci.plugins.workflow.pickles.Pickle;
+import org.jenkinsci.plugins.workflow.support.ComputerIndex;
 
 public class WorkspaceListLeasePickle extends Pickle {
 
@@ -48,16 +47,11 @@ public class WorkspaceListLeasePickle extends Pickle {
     }
 
     @Override public ListenableFuture<?> rehydrate(FlowExecutionOwner owner) {
-        return new TryRepeatedly<WorkspaceList.Lease>(1) {
-            @SuppressFBWarnings(value="RCN_REDUNDANT_NULLCHECK_OF_NONNULL_VALUE", justification="TODO 1.653+ switch to Jenkins.getInstanceOrNull")
+        return new WakeableTryRepeatedly<WorkspaceList.Lease>(slave, 1) {
             @Override protected WorkspaceList.Lease tryResolve() throws InterruptedException {
-                Jenkins j = Jenkins.getInstance();
-                if (j == null) {
-                    return null;
-                }
                 // FilePathUtils.find not useful here since we need c anyway, and cannot easily return a tuple
-                // (could call toComputer on result but then we iterate computers twice, a possible race condition)
-                Computer c = j.getComputer(slave);
+                // (could call toComputer on result but then we look up the computer twice, a possible race condition)
+                Computer c = slave != null ? ComputerIndex.getComputer(slave) : null;
                 if (c == null) {
                     return null;
                 }
@@ -0,0 +1,321 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.support.steps;
+
+import hudson.Launcher;
+import hudson.remoting.ChannelClosedException;
+import hudson.remoting.RequestAbortedException;
+import hudson.remoting.VirtualChannel;
+import hudson.util.ProcessTree;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nonnull;
+import jenkins.security.MasterToSlaveCallable;
+import jenkins.util.Timer;
+import org.jenkinsci.plugins.workflow.support.Counters;
+
+/**
+ * Kills processes left behind by node blocks, identified by an environment variable holding their cookie.
+ * {@link Launcher#kill} scans the whole process table of the agent for each cookie;
+ * here cookies for the same agent requested within a short window are matched in a single scan.
+ * With {@link ExecutorStepExecution#KILL_BY_START_TIME}, that scan also skips processes started before the oldest of those blocks,
+ * without reading their environment.
+ * Launchers which might override {@link Launcher#kill} are still called individually.
+ */
+final class CookieKiller {
+
+    private static final Logger LOGGER = Logger.getLogger(CookieKiller.class.getName());
+
+    /** pending cookies with the times they were requested, by channel */
+    private static final ConcurrentMap<VirtualChannel,Map<String,Request>> pending = new ConcurrentHashMap<VirtualChannel,Map<String,Request>>();
+
+    /**
+     * How much earlier than the start of a block a process may appear to have started on the agent and still be examined.
+     * Covers the delay of the call which measures clock skew, and the coarse boot time reported by the kernel.
+     */
+    private static final long START_TIME_SLACK = TimeUnit.MINUTES.toMillis(1);
+
+    private static final AtomicLong scans = Counters.get("node_block_kill_scans_total");
+    private static final AtomicLong killed = Counters.get("node_block_kill_batched_processes_total");
+    private static final AtomicLong totalLatency = Counters.get("node_block_kill_latency_milliseconds_total");
+
+    private static boolean batchable(Launcher launcher, VirtualChannel channel) {
+        return (ExecutorStepExecution.KILL_BATCH_WINDOW > 0 || ExecutorStepExecution.KILL_BY_START_TIME) && channel != null && (launcher.getClass() == Launcher.LocalLauncher.class || launcher.getClass() == Launcher.RemoteLauncher.class);
+    }
+
+    /**
+     * Asynchronously kills processes with the given value for an environment variable.
+     * @param launcher a launcher for the node the processes were started on
+     * @param started when the block which set the cookie started, as {@link System#currentTimeMillis}, or 0 if unknown
+     */
+    static void kill(@Nonnull final Launcher launcher, @Nonnull final String var, @Nonnull final String cookie, long started) {
+        final long requested = System.nanoTime();
+        final VirtualChannel channel = launcher.getChannel();
+        if (!batchable(launcher, channel)) {
+            Timer.get().submit(new Runnable() {
+                @Override public void run() {
+                    try {
+                        launcher.kill(Collections.singletonMap(var, cookie));
+                        completed(Collections.singletonMap(cookie, new Request(requested, started)));
+                    } catch (Exception x) {
+                        failed(Collections.singleton(cookie), x);
+                    }
+                }
+            });
+            return;
+        }
+        Request request = new Request(requested, started);
+        Map<String,Request> batch = new ConcurrentHashMap<String,Request>();
+        batch.put(cookie, request);
+        while (true) {
+            Map<String,Request> existing = pending.putIfAbsent(channel, batch);
+            if (existing == null) {
+                Timer.get().schedule(new Runnable() {
+                    @Override public void run() {
+                        flush(channel, var);
+                    }
+                }, ExecutorStepExecution.KILL_BATCH_WINDOW, TimeUnit.MILLISECONDS);
+                return;
+            }
+            synchronized (existing) {
+                if (pending.get(channel) == existing) { // not yet being flushed
+                    existing.put(cookie, request);
+                    return;
+                }
+            }
+        }
+    }
+
+    private static void flush(VirtualChannel channel, String var) {
+        Map<String,Request> batch = pending.get(channel);
+        if (batch == null) {
+            return;
+        }
+        synchronized (batch) {
+            pending.remove(channel);
+        }
+        long since = 0;
+        if (ExecutorStepExecution.KILL_BY_START_TIME) {
+            since = Long.MAX_VALUE;
+            for (Request request : batch.values()) {
+                since = Math.min(since, request.started); // one unknown start means no filtering
+            }
+            if (since > 0) {
+                since -= START_TIME_SLACK;
+            }
+        }
+        try {
+            int count = channel.call(new Kill(var, new HashSet<String>(batch.keySet()), since, System.currentTimeMillis()));
+            killed.addAndGet(count);
+            completed(batch);
+        } catch (Exception x) {
+            failed(batch.keySet(), x);
+        }
+    }
+
+    private static void completed(Map<String,Request> batch) {
+        scans.incrementAndGet();
+        long now = System.nanoTime();
+        for (Request request : batch.values()) {
+            long latency = TimeUnit.NANOSECONDS.toMillis(now - request.requested);
+            totalLatency.addAndGet(latency);
+            Counters.max("node_block_kill_latency_milliseconds_max", latency);
+        }
+        LOGGER.log(Level.FINE, "killed processes for {0}", batch.keySet());
+    }
+
+    private static void failed(Set<String> cookies, Exception x) {
+        if (x instanceof ChannelClosedException) {
+            // fine, Jenkins was shutting down
+        } else if (x instanceof RequestAbortedException) {
+            // slave was exiting; too late to kill subprocesses
+        } else {
+            LOGGER.log(Level.WARNING, "failed to shut down " + cookies, x);
+        }
+    }
+
+    private static final class Request {
+        /** as {@link System#nanoTime} */
+        final long requested;
+        /** as {@link System#currentTimeMillis}, or 0 if unknown */
+        final long started;
+
+        Request(long requested, long started) {
+            this.requested = requested;
+            this.started = started;
+        }
+    }
+
+    /** Like the callable behind {@link Launcher.RemoteLauncher#kill}, but for several cookies at once. */
+    private static final class Kill extends MasterToSlaveCallable<Integer,InterruptedException> {
+
+        private final String var;
+        private final Set<String> cookies;
+        /** processes started before this time on the master clock are skipped; 0 to examine all */
+        private final long since;
+        /** the master clock when this was sent */
+        private final long sent;
+
+        Kill(String var, Set<String> cookies, long since, long sent) {
+            this.var = var;
+            this.cookies = cookies;
+            this.since = since;
+            this.sent = sent;
+        }
+
+        @Override public Integer call() throws InterruptedException {
+            StartTimes startTimes = since > 0 ? StartTimes.get() : null;
+            // Translate to the agent clock; the delay of this call only makes the cutoff later, which START_TIME_SLACK absorbs.
+            long cutoff = since + System.currentTimeMillis() - sent;
+            List<ProcessTree.OSProcess> matches = new ArrayList<ProcessTree.OSProcess>();
+            for (ProcessTree.OSProcess p : ProcessTree.get()) {
+                if (startTimes != null) {
+                    long start = startTimes.of(p.getPid());
+                    if (start > 0 && start < cutoff) {
+                        continue;
+                    }
+                }
+                String value;
+                try {
+                    value = p.getEnvironmentVariables().get(var);
+                } catch (RuntimeException x) { // process exited, or permission denied
+                    LOGGER.log(Level.FINEST, "could not read environment of " + p.getPid(), x);
+                    continue;
+                }
+                if (value != null && cookies.contains(value)) {
+                    matches.add(p);
+                }
+            }
+            for (ProcessTree.OSProcess p : matches) {
+                p.killRecursively();
+            }
+            return matches.size();
+        }
+
+        private static final long serialVersionUID = 1L;
+
+    }
+
+    /** Reads process start times from {@code /proc} on a Linux agent. */
+    private static final class StartTimes {
+
+        /** clock ticks per second as used in {@code /proc/*}{@code /stat}, looked up once per agent; 0 if unavailable */
+        private static long ticksPerSecond = -1;
+
+        /** boot time in milliseconds */
+        private final long boot;
+        private final long ticks;
+
+        private StartTimes(long boot, long ticks) {
+            this.boot = boot;
+            this.ticks = ticks;
+        }
+
+        /** @return null unless start times can be read here */
+        static StartTimes get() {
+            File stat = new File("/proc/stat");
+            if (!stat.isFile()) {
+                return null;
+            }
+            long ticks = ticksPerSecond();
+            if (ticks <= 0) {
+                return null;
+            }
+            try {
+                for (String line : Files.readAllLines(stat.toPath(), StandardCharsets.US_ASCII)) {
+                    if (line.startsWith("btime ")) {
+                        return new StartTimes(Long.parseLong(line.substring(6).trim()) * 1000, ticks);
+                    }
+                }
+            } catch (IOException x) {
+                LOGGER.log(Level.FINE, "could not read boot time", x);
+            } catch (NumberFormatException x) {
+                LOGGER.log(Level.FINE, "could not read boot time", x);
+            }
+            return null;
+        }
+
+        private static synchronized long ticksPerSecond() {
+            if (ticksPerSecond < 0) {
+                ticksPerSecond = 0;
+                try {
+                    Process p = new ProcessBuilder("getconf", "CLK_TCK").redirectErrorStream(true).start();
+                    BufferedReader r = new BufferedReader(new InputStreamReader(p.getInputStream(), StandardCharsets.US_ASCII));
+                    try {
+                        String line = r.readLine();
+                        if (p.waitFor() == 0 && line != null) {
+                            ticksPerSecond = Long.parseLong(line.trim());
+                        }
+                    } finally {
+                        r.close();
+                    }
+                } catch (IOException x) {
+                    LOGGER.log(Level.FINE, "could not look up clock ticks", x);
+                } catch (InterruptedException x) {
+                    Thread.currentThread().interrupt();
+                } catch (NumberFormatException x) {
+                    LOGGER.log(Level.FINE, "could not look up clock ticks", x);
+                }
+            }
+            return ticksPerSecond;
+        }
+
+        /** @return when the process started on the agent clock, or 0 if unknown */
+        long of(int pid) {
+            try {
+                String stat = new String(Files.readAllBytes(new File("/proc/" + pid + "/stat").toPath()), StandardCharsets.US_ASCII);
+                // The command name in parentheses may contain spaces, so count fields from after it; starttime is the 22nd field.
+                String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+                return boot + Long.parseLong(fields[19]) * 1000 / ticks;
+            } catch (IOException x) { // process exited
+                LOGGER.log(Level.FINEST, "could not read start time of " + pid, x);
+                return 0;
+            } catch (RuntimeException x) { // unexpected format
+                LOGGER.log(Level.FINEST, "could not read start time of " + pid, x);
+                return 0;
+            }
+        }
+
+    }
+
+    private CookieKiller() {}
+
+}
@@ -0,0 +1,129 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.support.steps;
+
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.Computer;
+import hudson.model.Saveable;
+import hudson.model.TaskListener;
+import hudson.model.listeners.SaveableListener;
+import hudson.slaves.ComputerListener;
+import hudson.slaves.OfflineCause;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import jenkins.model.Jenkins;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Remembers the base environment of each computer, as computed from {@link Computer#getEnvironment} and {@link Computer#buildEnvironment},
+ * so that it need not be computed again for every node block.
+ * Forgotten when the computer connects or disconnects, when node configuration changes, and when global configuration is saved.
+ * Variables specific to a block are added to a copy.
+ */
+@Restricted(NoExternalUse.class)
+@Extension public final class EnvironmentCache extends ComputerListener {
+
+    private static final Logger LOGGER = Logger.getLogger(EnvironmentCache.class.getName());
+
+    private static final Map<Computer,EnvVars> environments = Collections.synchronizedMap(new WeakHashMap<Computer,EnvVars>());
+
+    /** incremented whenever anything is invalidated, so that an environment computed meanwhile is not cached */
+    private static final AtomicLong generation = new AtomicLong();
+
+    /** Token to pass to {@link #put}, obtained before computing an environment. */
+    static long generation() {
+        return generation.get();
+    }
+
+    /** @return a copy of the cached environment, or null */
+    static @CheckForNull EnvVars get(@Nonnull Computer computer) {
+        if (!ExecutorStepExecution.CACHE_ENVIRONMENT) {
+            return null;
+        }
+        EnvVars env = environments.get(computer);
+        return env != null ? new EnvVars(env) : null;
+    }
+
+    /**
+     * Caches a freshly computed environment.
+     * @param env not retained, so the caller may go on to modify it
+     * @param generation the result of {@link #generation()} from before it was computed
+     */
+    static void put(@Nonnull Computer computer, @Nonnull EnvVars env, long generation) {
+        if (!ExecutorStepExecution.CACHE_ENVIRONMENT) {
+            return;
+        }
+        synchronized (environments) {
+            if (generation == EnvironmentCache.generation.get()) {
+                environments.put(computer, new EnvVars(env));
+            }
+        }
+    }
+
+    private static void invalidate(@CheckForNull Computer computer) {
+        synchronized (environments) {
+            generation.incrementAndGet();
+            if (computer != null) {
+                environments.remove(computer);
+            } else {
+                environments.clear();
+            }
+        }
+        LOGGER.log(Level.FINE, "invalidated environment of {0}", computer != null ? computer.getName() : "all computers");
+    }
+
+    @Override public void onOnline(Computer c, TaskListener listener) {
+        invalidate(c);
+    }
+
+    @Override public void onOffline(Computer c, OfflineCause cause) {
+        invalidate(c);
+    }
+
+    @Override public void onConfigurationChange() {
+        invalidate(null);
+    }
+
+    @Restricted(NoExternalUse.class)
+    @Extension public static final class GlobalConfigurationListener extends SaveableListener {
+
+        @Override public void onChange(Saveable o, XmlFile file) {
+            if (o instanceof Jenkins) { // global node properties, among other things
+                invalidate(null);
+            }
+        }
+
+    }
+
+}
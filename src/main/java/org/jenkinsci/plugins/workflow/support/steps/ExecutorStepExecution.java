@@ -1,11 +1,14 @@
 package org.jenkinsci.plugins.workflow.support.steps;
 
+import com.google.common.util.concurrent.Futures;
 import com.google.inject.Inject;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import hudson.AbortException;
 import hudson.EnvVars;
 import hudson.Extension;
 import hudson.FilePath;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
 import hudson.Launcher;
 import hudson.Util;
 import hudson.model.Computer;
@@ -14,6 +17,7 @@ import hudson.model.Item;
 import hudson.model.Job;
 import hudson.model.Label;
 import hudson.model.Node;
+import hudson.model.PeriodicWork;
 import hudson.model.Queue;
 import hudson.model.ResourceList;
 import hudson.model.Run;
@@ -22,8 +26,6 @@ import hudson.model.TopLevelItem;
 import hudson.model.queue.CauseOfBlockage;
 import hudson.model.queue.QueueListener;
 import hudson.model.queue.SubTask;
-import hudson.remoting.ChannelClosedException;
-import hudson.remoting.RequestAbortedException;
 import hudson.security.ACL;
 import hudson.security.AccessControlled;
 import hudson.security.Permission;
@@ -31,16 +33,25 @@ import hudson.slaves.WorkspaceList;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
-import java.util.logging.Level;
+import java.util.concurrent.atomic.AtomicReference;
 import static java.util.logging.Level.*;
 import java.util.logging.Logger;
 import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import jenkins.model.Jenkins;
 import jenkins.model.Jenkins.MasterComputer;
@@ -68,6 +79,83 @@ import org.kohsuke.stapler.export.ExportedBean;
 
 public class ExecutorStepExecution extends AbstractStepExecutionImpl {
 
+    /**
+     * Milliseconds to collect node blocks starting together, such as the branches of a large {@code parallel}, before scheduling them under a single queue lock.
+     * Zero to schedule each as it starts.
+     */
+    @SuppressFBWarnings(value="MS_SHOULD_BE_FINAL", justification="mutable for scripts")
+    @Restricted(NoExternalUse.class)
+    public static long SCHEDULE_BATCH_WINDOW = Long.getLong(ExecutorStepExecution.class.getName() + ".SCHEDULE_BATCH_WINDOW", 0);
+
+    /**
+     * Milliseconds to wait for further requests to kill processes left behind by node blocks on the same agent, so that one scan of its processes serves them all.
+     * Zero to kill those of each block on their own.
+     */
+    @SuppressFBWarnings(value="MS_SHOULD_BE_FINAL", justification="mutable for scripts")
+    @Restricted(NoExternalUse.class)
+    public static long KILL_BATCH_WINDOW = Long.getLong(ExecutorStepExecution.class.getName() + ".KILL_BATCH_WINDOW", 0);
+
+    /**
+     * Whether to skip processes which started before a node block when looking for those it left behind.
+     * Such processes cannot carry its cookie, so their environment need not be read.
+     * Only takes effect where process start times are known, currently Linux agents.
+     * @see CookieKiller
+     */
+    @SuppressFBWarnings(value="MS_SHOULD_BE_FINAL", justification="mutable for scripts")
+    @Restricted(NoExternalUse.class)
+    public static boolean KILL_BY_START_TIME = Boolean.getBoolean(ExecutorStepExecution.class.getName() + ".KILL_BY_START_TIME");
+
+    /**
+     * Whether to prepare node blocks off the executor thread, running independent stages such as computing the environment and allocating the workspace concurrently.
+     * @see NodeBlockSetup
+     */
+    @SuppressFBWarnings(value="MS_SHOULD_BE_FINAL", justification="mutable for scripts")
+    @Restricted(NoExternalUse.class)
+    public static boolean ASYNC_SETUP = Boolean.getBoolean(ExecutorStepExecution.class.getName() + ".ASYNC_SETUP");
+
+    /**
+     * Seconds to wait for any one stage of preparing a node block.
+     * Only enforced with {@link #ASYNC_SETUP}; otherwise stages run on the executor thread, which nothing interrupts.
+     */
+    @SuppressFBWarnings(value="MS_SHOULD_BE_FINAL", justification="mutable for scripts")
+    @Restricted(NoExternalUse.class)
+    public static long SETUP_TIMEOUT = Long.getLong(ExecutorStepExecution.class.getName() + ".SETUP_TIMEOUT", 300);
+
+    /**
+     * Whether to reuse the base environment computed for a computer in later node blocks, until its configuration changes.
+     * @see EnvironmentCache
+     */
+    @SuppressFBWarnings(value="MS_SHOULD_BE_FINAL", justification="mutable for scripts")
+    @Restricted(NoExternalUse.class)
+    public static boolean CACHE_ENVIRONMENT = Boolean.getBoolean(ExecutorStepExecution.class.getName() + ".CACHE_ENVIRONMENT");
+
+    /**
+     * Whether to fill a newly created workspace variant such as {@code @2} with a copy-on-write clone of an idle sibling.
+     * Applies to node blocks and to {@code ws}.
+     * @see WorkspaceSeeder
+     */
+    @SuppressFBWarnings(value="MS_SHOULD_BE_FINAL", justification="mutable for scripts")
+    @Restricted(NoExternalUse.class)
+    public static boolean SEED_WORKSPACES = Boolean.getBoolean(ExecutorStepExecution.class.getName() + ".SEED_WORKSPACES");
+
+    /**
+     * Seconds for which a node block holds out for the node it ran on in a recent build, where its workspace is likely to be warm.
+     * Zero to neither record nor use such preferences.
+     * @see WorkspaceAffinityAction
+     */
+    @SuppressFBWarnings(value="MS_SHOULD_BE_FINAL", justification="mutable for scripts")
+    @Restricted(NoExternalUse.class)
+    public static long AFFINITY_WAIT = Long.getLong(ExecutorStepExecution.class.getName() + ".AFFINITY_WAIT", 0);
+
+    /**
+     * Milliseconds for which the executor and workspace of a finished node block are kept for the next node block of the same build.
+     * Zero to release them immediately.
+     * @see StickyExecutors
+     */
+    @SuppressFBWarnings(value="MS_SHOULD_BE_FINAL", justification="mutable for scripts")
+    @Restricted(NoExternalUse.class)
+    public static long STICKY_EXECUTOR_GRACE = Long.getLong(ExecutorStepExecution.class.getName() + ".STICKY_EXECUTOR_GRACE", 0);
+
     @Inject(optional=true) private ExecutorStep step;
     @StepContextParameter private transient TaskListener listener;
     @StepContextParameter private transient Run<?,?> run;
@@ -84,21 +172,169 @@ public class ExecutorStepExecution extends AbstractStepExecutionImpl {
      */
     @Override
     public boolean start() throws Exception {
-        final PlaceholderTask task = new PlaceholderTask(getContext(), step.getLabel(), run);
+        PlaceholderTask task = newTask();
+        if (SCHEDULE_BATCH_WINDOW > 0) {
+            Scheduling.add(task, listener);
+        } else {
+            schedule(task, listener);
+        }
+        return false;
+    }
+
+    /** Prepares the queue task for this block; may load earlier builds, so should not be called under the queue lock. */
+    private PlaceholderTask newTask() {
+        PlaceholderTask task = new PlaceholderTask(getContext(), step.getLabel(), run);
+        if (AFFINITY_WAIT > 0) {
+            task.affinity = WorkspaceAffinityAction.key(step.getLabel(), flowNode);
+            task.preferredNode = WorkspaceAffinityAction.lookup(run, task.affinity);
+        }
+        if (StickyExecutors.isEnabled()) {
+            StickyExecutors.Reservation reserved = StickyExecutors.take(task.runId, task.getAssignedLabel());
+            if (reserved != null) {
+                task.preferredNode = reserved.getNodeName();
+                StickyExecutors.handOver(reserved, task);
+            }
+        }
+        return task;
+    }
+
+    private static void schedule(PlaceholderTask task, TaskListener listener) {
         if (Queue.getInstance().schedule2(task, 0).getCreateItem() == null) {
             // There can be no duplicates. But could be refused if a QueueDecisionHandler rejects it for some odd reason.
             throw new IllegalStateException("failed to schedule task");
         }
-        Timer.get().schedule(new Runnable() {
+        StillWaiting.watch(task.context, listener);
+    }
+
+    /** Schedules several tasks under a single queue lock, failing the steps of any which cannot be scheduled. */
+    private static void scheduleAll(final Map<PlaceholderTask,TaskListener> tasks) {
+        Queue.withLock(new Runnable() {
             @Override public void run() {
-                Queue.Item item = Queue.getInstance().getItem(task);
+                for (Map.Entry<PlaceholderTask,TaskListener> entry : tasks.entrySet()) {
+                    try {
+                        schedule(entry.getKey(), entry.getValue());
+                    } catch (Exception x) {
+                        entry.getKey().context.onFailure(x);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Collects node blocks started within {@link #SCHEDULE_BATCH_WINDOW} and schedules them under a single queue lock.
+     */
+    private static final class Scheduling {
+
+        private static final Map<PlaceholderTask,TaskListener> pending = new LinkedHashMap<PlaceholderTask,TaskListener>();
+
+        static void add(PlaceholderTask task, TaskListener listener) {
+            synchronized (pending) {
+                pending.put(task, listener);
+                if (pending.size() > 1) {
+                    return; // flush already scheduled
+                }
+            }
+            Timer.get().schedule(new Runnable() {
+                @Override public void run() {
+                    flush();
+                }
+            }, SCHEDULE_BATCH_WINDOW, TimeUnit.MILLISECONDS);
+        }
+
+        /** Drops a node block stopped before it could be scheduled. */
+        static void cancel(StepContext context) {
+            synchronized (pending) {
+                Iterator<PlaceholderTask> it = pending.keySet().iterator();
+                while (it.hasNext()) {
+                    if (it.next().context.equals(context)) {
+                        it.remove();
+                    }
+                }
+            }
+        }
+
+        static boolean isPending(StepContext context) {
+            synchronized (pending) {
+                for (PlaceholderTask task : pending.keySet()) {
+                    if (task.context.equals(context)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        private static void flush() {
+            Map<PlaceholderTask,TaskListener> tasks;
+            synchronized (pending) {
+                tasks = new LinkedHashMap<PlaceholderTask,TaskListener>(pending);
+                pending.clear();
+            }
+            scheduleAll(tasks);
+            LOGGER.log(FINE, "Scheduled {0} node blocks together", tasks.size());
+        }
+
+    }
+
+    /**
+     * Tells the build log about node blocks which have been in the queue for a while.
+     * A single periodic check serves all node blocks; entries are dropped as soon as their items leave the queue.
+     */
+    @Restricted(NoExternalUse.class)
+    @Extension public static final class StillWaiting extends PeriodicWork {
+
+        /** nanoseconds in the queue before a message is printed */
+        private static final long DELAY = TimeUnit.SECONDS.toNanos(15);
+
+        private final Map<StepContext,Watch> watched = new ConcurrentHashMap<StepContext,Watch>();
+
+        private static final class Watch {
+            final TaskListener listener;
+            final long since = System.nanoTime();
+            Watch(TaskListener listener) {
+                this.listener = listener;
+            }
+        }
+
+        static void watch(StepContext context, TaskListener listener) {
+            StillWaiting stillWaiting = all().get(StillWaiting.class);
+            if (stillWaiting != null) {
+                stillWaiting.watched.put(context, new Watch(listener));
+            }
+        }
+
+        static void forget(StepContext context) {
+            StillWaiting stillWaiting = all().get(StillWaiting.class);
+            if (stillWaiting != null) {
+                stillWaiting.watched.remove(context);
+            }
+        }
+
+        @Override public long getRecurrencePeriod() {
+            return TimeUnit.SECONDS.toMillis(1);
+        }
+
+        @Override protected void doRun() throws Exception {
+            if (watched.isEmpty()) {
+                return;
+            }
+            long now = System.nanoTime();
+            Iterator<Map.Entry<StepContext,Watch>> it = watched.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<StepContext,Watch> entry = it.next();
+                if (now - entry.getValue().since < DELAY) {
+                    continue;
+                }
+                it.remove();
+                Queue.Item item = Index.findItem(entry.getKey());
                 if (item != null) {
                     PrintStream logger;
                     try {
-                        logger = listener.getLogger();
+                        logger = entry.getValue().listener.getLogger();
                     } catch (Exception x) { // IOException, InterruptedException
                         LOGGER.log(WARNING, null, x);
-                        return;
+                        continue;
                     }
                     logger.println("Still waiting to schedule task");
                     String why = item.getWhy();
@@ -107,31 +343,24 @@ public class ExecutorStepExecution extends AbstractStepExecutionImpl {
                     }
                 }
             }
-        }, 15, TimeUnit.SECONDS);
-        return false;
+        }
+
     }
 
     @Override
     public void stop(Throwable cause) {
-        for (Queue.Item item : Queue.getInstance().getItems()) {
+        Scheduling.cancel(getContext());
+        Queue.Item item = Index.findItem(getContext());
+        if (item != null) {
             // if we are still in the queue waiting to be scheduled, just retract that
-            if (item.task instanceof PlaceholderTask && ((PlaceholderTask) item.task).context.equals(getContext())) {
-                Queue.getInstance().cancel(item);
-                break;
-            }
-        }
-        Jenkins j = Jenkins.getInstance();
-        if (j != null) {
-            // if we are already running, kill the ongoing activities, which releases PlaceholderExecutable from its sleep loop
-            // Similar to Executor.of, but distinct since we do not have the Executable yet:
-            COMPUTERS: for (Computer c : j.getComputers()) {
-                for (Executor e : c.getExecutors()) {
-                    Queue.Executable exec = e.getCurrentExecutable();
-                    if (exec instanceof PlaceholderTask.PlaceholderExecutable && ((PlaceholderTask.PlaceholderExecutable) exec).getParent().context.equals(getContext())) {
-                        PlaceholderTask.finish(((PlaceholderTask.PlaceholderExecutable) exec).getParent().cookie);
-                        break COMPUTERS;
-                    }
-                }
+            Queue.getInstance().cancel(item);
+        }
+        // if we are already running, kill the ongoing activities, which releases PlaceholderExecutable from its sleep loop
+        Executor e = Index.findExecutor(getContext());
+        if (e != null) {
+            Queue.Executable exec = e.getCurrentExecutable();
+            if (exec instanceof PlaceholderTask.PlaceholderExecutable) {
+                PlaceholderTask.finish(((PlaceholderTask.PlaceholderExecutable) exec).getParent().cookie);
             }
         }
         // Whether or not either of the above worked (and they would not if for example our item were canceled), make sure we die.
@@ -141,55 +370,224 @@ public class ExecutorStepExecution extends AbstractStepExecutionImpl {
     @Override public void onResume() {
         super.onResume();
         // See if we are still running, or scheduled to run. Cf. stop logic above.
-        for (Queue.Item item : Queue.getInstance().getItems()) {
-            if (item.task instanceof PlaceholderTask && ((PlaceholderTask) item.task).context.equals(getContext())) {
-                LOGGER.log(FINE, "Queue item for node block in {0} is still waiting after reload", run);
-                return;
-            }
+        if (Index.findItem(getContext()) != null) {
+            LOGGER.log(FINE, "Queue item for node block in {0} is still waiting after reload", run);
+            return;
         }
-        Jenkins j = Jenkins.getInstance();
-        if (j != null) {
-            COMPUTERS: for (Computer c : j.getComputers()) {
-                for (Executor e : c.getExecutors()) {
-                    Queue.Executable exec = e.getCurrentExecutable();
-                    if (exec instanceof PlaceholderTask.PlaceholderExecutable && ((PlaceholderTask.PlaceholderExecutable) exec).getParent().context.equals(getContext())) {
-                        LOGGER.log(FINE, "Node block in {0} is running on {1} after reload", new Object[] {run, c.getName()});
-                        return;
-                    }
-                }
-            }
+        Executor e = Index.findExecutor(getContext());
+        if (e != null) {
+            LOGGER.log(FINE, "Node block in {0} is running on {1} after reload", new Object[] {run, e.getOwner().getName()});
+            return;
         }
         if (step == null) { // compatibility: used to be transient
             listener.getLogger().println("Queue item for node block in " + run.getFullDisplayName() + " is missing (perhaps JENKINS-34281), but cannot reschedule");
             return;
         }
         listener.getLogger().println("Queue item for node block in " + run.getFullDisplayName() + " is missing (perhaps JENKINS-34281); rescheduling");
-        try {
-            start();
-        } catch (Exception x) {
-            getContext().onFailure(x);
+        Rescheduling.add(this);
+    }
+
+    /**
+     * Reschedules node blocks found to be missing after a restart.
+     * These tend to come all at once, so they are collected briefly and then scheduled under a single queue lock.
+     * Their tasks are prepared before taking the lock.
+     */
+    private static final class Rescheduling {
+
+        private static final long DELAY = 500; // ms
+
+        private static final List<ExecutorStepExecution> pending = new ArrayList<ExecutorStepExecution>();
+
+        static void add(ExecutorStepExecution execution) {
+            synchronized (pending) {
+                pending.add(execution);
+                if (pending.size() > 1) {
+                    return; // flush already scheduled
+                }
+            }
+            Timer.get().schedule(new Runnable() {
+                @Override public void run() {
+                    flush();
+                }
+            }, DELAY, TimeUnit.MILLISECONDS);
         }
+
+        private static void flush() {
+            List<ExecutorStepExecution> executions;
+            synchronized (pending) {
+                executions = new ArrayList<ExecutorStepExecution>(pending);
+                pending.clear();
+            }
+            Map<PlaceholderTask,TaskListener> tasks = new LinkedHashMap<PlaceholderTask,TaskListener>();
+            for (ExecutorStepExecution execution : executions) {
+                try {
+                    tasks.put(execution.newTask(), execution.listener);
+                } catch (RuntimeException x) {
+                    execution.getContext().onFailure(x);
+                }
+            }
+            scheduleAll(tasks);
+            LOGGER.log(INFO, "Rescheduled {0} missing node blocks", tasks.size());
+        }
+
     }
 
     @Override public String getStatus() {
-        // Yet another copy of the same logic; perhaps this should be factored into some method returning a union of Queue.Item and PlaceholderExecutable?
-        for (Queue.Item item : Queue.getInstance().getItems()) {
-            if (item.task instanceof PlaceholderTask && ((PlaceholderTask) item.task).context.equals(getContext())) {
-                return "waiting for " + item.task.getFullDisplayName() + " to be scheduled; blocked: " + item.getWhy();
-            }
-        }
-        Jenkins j = Jenkins.getInstance();
-        if (j != null) {
-            COMPUTERS: for (Computer c : j.getComputers()) {
-                for (Executor e : c.getExecutors()) {
-                    Queue.Executable exec = e.getCurrentExecutable();
-                    if (exec instanceof PlaceholderTask.PlaceholderExecutable && ((PlaceholderTask.PlaceholderExecutable) exec).getParent().context.equals(getContext())) {
-                        return "running on " + c.getName();
+        Queue.Item item = Index.findItem(getContext());
+        if (item != null) {
+            return "waiting for " + item.task.getFullDisplayName() + " to be scheduled; blocked: " + item.getWhy();
+        }
+        if (Scheduling.isPending(getContext())) {
+            return "about to be scheduled";
+        }
+        Executor e = Index.findExecutor(getContext());
+        if (e != null) {
+            return "running on " + e.getOwner().getName();
+        }
+        return "node block appears to be neither running nor scheduled";
+    }
+
+    /**
+     * Finds the queue item or executor of a node block by its {@link StepContext} without scanning the whole queue and every executor.
+     * Queue items are tracked by {@link IndexListener} once the queue has been scanned for the first time;
+     * executors are recorded as {@link PlaceholderTask.PlaceholderExecutable} starts, with a scan as a fallback (for example before it resumes after a restart).
+     * Since many blocks are looked up together after a restart, one such scan serves all lookups for a few seconds.
+     */
+    private static final class Index {
+
+        /** milliseconds for which {@link #snapshot} may be reused */
+        private static final long SNAPSHOT_TTL = 5000;
+
+        private static final Map<StepContext,Queue.Item> items = new ConcurrentHashMap<StepContext,Queue.Item>();
+        private static final Map<StepContext,Executor> executors = new ConcurrentHashMap<StepContext,Executor>();
+        private static volatile boolean seeded;
+        /** result of the last scan of all executors */
+        private static Map<StepContext,Executor> snapshot;
+        private static long snapshotTaken;
+
+        static @CheckForNull Queue.Item findItem(StepContext context) {
+            if (!seeded) {
+                synchronized (Index.class) {
+                    if (!seeded) {
+                        for (Queue.Item item : Queue.getInstance().getItems()) {
+                            if (item.task instanceof PlaceholderTask) {
+                                items.put(((PlaceholderTask) item.task).context, item);
+                            }
+                        }
+                        seeded = true;
                     }
                 }
             }
+            return items.get(context);
         }
-        return "node block appears to be neither running nor scheduled";
+
+        static void itemChanged(Queue.Item item) {
+            if (item.task instanceof PlaceholderTask) {
+                items.put(((PlaceholderTask) item.task).context, item);
+            }
+        }
+
+        static void itemLeft(Queue.Item item) {
+            if (item.task instanceof PlaceholderTask) {
+                StepContext context = ((PlaceholderTask) item.task).context;
+                Queue.Item current = items.get(context);
+                if (current != null && current.getId() == item.getId()) { // not since rescheduled
+                    items.remove(context);
+                }
+            }
+        }
+
+        static void started(StepContext context, Executor executor) {
+            executors.put(context, executor);
+        }
+
+        static void finished(StepContext context) {
+            executors.remove(context);
+        }
+
+        /** @return an executor whose current executable is a {@link PlaceholderTask.PlaceholderExecutable} for the given context */
+        static @CheckForNull Executor findExecutor(StepContext context) {
+            Executor e = executors.get(context);
+            if (e != null) {
+                if (runs(e, context)) {
+                    return e;
+                }
+                executors.remove(context);
+            }
+            e = snapshot().get(context);
+            if (e != null && runs(e, context)) {
+                executors.put(context, e);
+                return e;
+            }
+            return null;
+        }
+
+        @SuppressFBWarnings(value="RCN_REDUNDANT_NULLCHECK_OF_NONNULL_VALUE", justification="TODO 1.653+ switch to Jenkins.getInstanceOrNull")
+        private static synchronized Map<StepContext,Executor> snapshot() {
+            long now = System.currentTimeMillis();
+            if (snapshot == null || now - snapshotTaken > SNAPSHOT_TTL) {
+                Map<StepContext,Executor> scanned = new HashMap<StepContext,Executor>();
+                Jenkins j = Jenkins.getInstance();
+                if (j != null) {
+                    // Similar to Executor.of, but distinct since we do not have the Executable yet:
+                    for (Computer c : j.getComputers()) {
+                        for (Executor e : c.getExecutors()) {
+                            Queue.Executable exec = e.getCurrentExecutable();
+                            if (exec instanceof PlaceholderTask.PlaceholderExecutable) {
+                                scanned.put(((PlaceholderTask.PlaceholderExecutable) exec).getParent().context, e);
+                            }
+                        }
+                    }
+                }
+                snapshot = scanned;
+                snapshotTaken = now;
+            }
+            return snapshot;
+        }
+
+        /** Forgets everything recorded about a previous Jenkins instance in this JVM, as in tests. */
+        static synchronized void reset() {
+            items.clear();
+            executors.clear();
+            seeded = false;
+            snapshot = null;
+        }
+
+        private static boolean runs(Executor e, StepContext context) {
+            Queue.Executable exec = e.getCurrentExecutable();
+            return exec instanceof PlaceholderTask.PlaceholderExecutable && ((PlaceholderTask.PlaceholderExecutable) exec).getParent().context.equals(context);
+        }
+
+    }
+
+    @Restricted(DoNotUse.class)
+    @Initializer(before=InitMilestone.PLUGINS_STARTED)
+    public static void resetIndex() {
+        Index.reset();
+    }
+
+    @Restricted(NoExternalUse.class)
+    @Extension public static class IndexListener extends QueueListener {
+
+        @Override public void onEnterWaiting(Queue.WaitingItem wi) {
+            Index.itemChanged(wi);
+        }
+
+        @Override public void onEnterBlocked(Queue.BlockedItem bi) {
+            Index.itemChanged(bi);
+        }
+
+        @Override public void onEnterBuildable(Queue.BuildableItem bi) {
+            Index.itemChanged(bi);
+        }
+
+        @Override public void onLeft(Queue.LeftItem li) {
+            Index.itemLeft(li);
+            if (li.task instanceof PlaceholderTask) {
+                StillWaiting.forget(((PlaceholderTask) li.task).context);
+            }
+        }
+
     }
 
     @Extension public static class CancelledItemListener extends QueueListener {
@@ -204,21 +602,57 @@ public class ExecutorStepExecution extends AbstractStepExecutionImpl {
 
     }
 
-    /** Transient handle of a running executor task. */
-    private static final class RunningTask {
-        /** null until placeholder executable runs */
-        @Nullable AsynchronousExecution execution;
+    /**
+     * Transient handle of a running executor task.
+     * {@link #execution} moves from null to the actual execution (when the placeholder executable runs) and then to {@link #FINISHED},
+     * or directly from null to {@link #FINISHED} if the body completes first; transitions are atomic, so no lock is needed.
+     */
+    static final class RunningTask {
         /** null until placeholder executable runs */
-        @Nullable Launcher launcher;
+        private final AtomicReference<AsynchronousExecution> execution = new AtomicReference<AsynchronousExecution>();
+        /** null until placeholder executable runs; set before {@link #execution} */
+        volatile @Nullable Launcher launcher;
+        /** null after a restart */
+        volatile @Nullable NodeBlockMetrics.Lifecycle metrics;
+        /** when the block started, as {@link System#currentTimeMillis}; 0 after a restart */
+        volatile long started;
+
+        /**
+         * Records the execution the placeholder executable is about to throw.
+         * @return false if the task already finished, in which case the executable should just return
+         */
+        boolean attach(@Nonnull AsynchronousExecution e) {
+            return execution.compareAndSet(null, e);
+        }
+
+        /**
+         * Marks the task finished.
+         * @return the execution to complete, or null if none was attached yet or this was already finished
+         */
+        @CheckForNull AsynchronousExecution finish() {
+            AsynchronousExecution e = execution.getAndSet(FINISHED);
+            return e == FINISHED ? null : e;
+        }
     }
 
+    /** Marks a {@link RunningTask} as finished. */
+    private static final AsynchronousExecution FINISHED = new AsynchronousExecution() {
+        @Override public void interrupt(boolean forShutdown) {}
+        @Override public boolean blocksRestart() {
+            return false;
+        }
+        @Override public boolean displayCell() {
+            return false;
+        }
+    };
+
     private static final String COOKIE_VAR = "JENKINS_SERVER_COOKIE";
 
     @ExportedBean
     public static final class PlaceholderTask implements ContinuedTask, Serializable, AccessControlled {
 
         /** keys are {@link #cookie}s */
-        private static final Map<String,RunningTask> runningTasks = new HashMap<String,RunningTask>();
+        private static final ConcurrentMap<String,RunningTask> runningTasks = new ConcurrentHashMap<String,RunningTask>();
 
         private final StepContext context;
         /** Initially set to {@link ExecutorStep#getLabel}, if any; later switched to actual self-label when block runs. */
@@ -233,23 +667,38 @@ public class ExecutorStepExecution extends AbstractStepExecutionImpl {
          * and allows {@link Launcher#kill} to work.
          */
         private String cookie;
+        /** Identifies this block to {@link WorkspaceAffinityAction}, if in use. */
+        private @CheckForNull String affinity;
+        /** The node this block ran on in a recent build, if known. */
+        private @CheckForNull String preferredNode;
+        /** null after a restart */
+        private transient @CheckForNull NodeBlockMetrics.Lifecycle metrics;
 
         PlaceholderTask(StepContext context, String label, Run<?,?> run) {
             this.context = context;
             this.label = label;
             runId = run.getExternalizableId();
+            metrics = new NodeBlockMetrics.Lifecycle(label);
         }
 
         private Object readResolve() {
             LOGGER.log(FINE, "deserialized {0}", cookie);
             if (cookie != null) {
-                synchronized (runningTasks) {
-                    runningTasks.put(cookie, new RunningTask());
-                }
+                resume(cookie);
             }
             return this;
         }
 
+        /**
+         * Registers a task found after a restart, unless some other deserialized copy got there first.
+         * @return the registered task
+         */
+        static RunningTask resume(@Nonnull String cookie) {
+            RunningTask created = new RunningTask();
+            RunningTask existing = runningTasks.putIfAbsent(cookie, created);
+            return existing != null ? existing : created;
+        }
+
         /**
          * Gives {@link FlowNode}, waiting to be executed  in build {@link Queue}.
          *
@@ -287,7 +736,15 @@ public class ExecutorStepExecution extends AbstractStepExecutionImpl {
             if (j == null) {
                 return null;
             }
-            return j.getNode(label);
+            Node n = j.getNode(label);
+            if (n == null && preferredNode != null) {
+                n = j.getNode(preferredNode);
+            }
+            return n;
+        }
+
+        @CheckForNull String getPreferredNode() {
+            return preferredNode;
         }
 
         @Override public boolean isBuildBlocked() {
@@ -442,39 +899,94 @@ public class ExecutorStepExecution extends AbstractStepExecutionImpl {
             return "ExecutorStepExecution.PlaceholderTask{runId=" + runId + ",label=" + label + ",context=" + context + ",cookie=" + cookie +  '}';
         }
 
-        private static void finish(@CheckForNull final String cookie) {
+        static void finish(@CheckForNull final String cookie) {
             if (cookie == null) {
                 return;
             }
-            synchronized (runningTasks) {
-                final RunningTask runningTask = runningTasks.remove(cookie);
-                if (runningTask == null) {
-                    LOGGER.log(FINE, "no running task corresponds to {0}", cookie);
-                    return;
-                }
-                final AsynchronousExecution execution = runningTask.execution;
-                if (execution == null) {
-                    // JENKINS-30759: finished before asynch execution was even scheduled
-                    return;
+            final RunningTask runningTask = runningTasks.remove(cookie);
+            if (runningTask == null) {
+                LOGGER.log(FINE, "no running task corresponds to {0}", cookie);
+                return;
+            }
+            final AsynchronousExecution execution = runningTask.finish();
+            if (execution == null) {
+                // JENKINS-30759: finished before asynch execution was even scheduled
+                return;
+            }
+            final Launcher launcher = runningTask.launcher;
+            assert launcher != null;
+            final long started = runningTask.started;
+            Timer.get().submit(new Runnable() { // JENKINS-31614
+                @Override public void run() {
+                    execution.completed(null);
+                    CookieKiller.kill(launcher, COOKIE_VAR, cookie, started);
                 }
-                assert runningTask.launcher != null;
-                Timer.get().submit(new Runnable() { // JENKINS-31614
-                    @Override public void run() {
-                        execution.completed(null);
-                        try {
-                            runningTask.launcher.kill(Collections.singletonMap(COOKIE_VAR, cookie));
-                        } catch (ChannelClosedException x) {
-                            // fine, Jenkins was shutting down
-                        } catch (RequestAbortedException x) {
-                            // slave was exiting; too late to kill subprocesses
-                        } catch (Exception x) {
-                            LOGGER.log(Level.WARNING, "failed to shut down " + cookie, x);
-                        }
-                    }
-                });
+            });
+        }
+
+        /**
+         * Keeps the executor of a finished block for a later block of the same build.
+         * @return false if the executor is not running this task
+         */
+        private static boolean reserve(Executor exec, String cookie, WorkspaceList.Lease lease) {
+            Queue.Executable executable = exec.getCurrentExecutable();
+            if (!(executable instanceof PlaceholderExecutable)) {
+                return false;
             }
+            PlaceholderExecutable placeholder = (PlaceholderExecutable) executable;
+            PlaceholderTask task = placeholder.getParent();
+            if (!cookie.equals(task.cookie) || task.runId == null) {
+                return false;
+            }
+            StickyExecutors.park(new Reserved(exec, placeholder, lease));
+            return true;
         }
 
+        /** An executor kept by {@link #reserve}. */
+        private static final class Reserved extends StickyExecutors.Reservation {
+
+            final Executor exec;
+            final PlaceholderExecutable placeholder;
+            final WorkspaceList.Lease lease;
+
+            Reserved(Executor exec, PlaceholderExecutable placeholder, WorkspaceList.Lease lease) {
+                super(placeholder.getParent().runId);
+                this.exec = exec;
+                this.placeholder = placeholder;
+                this.lease = lease;
+            }
+
+            @Override String getNodeName() {
+                return exec.getOwner().getName();
+            }
+
+            @Override boolean matches(Label label) {
+                Computer computer = exec.getOwner();
+                Node node = computer.getNode();
+                return node != null && computer.isOnline() && (label == null || label.contains(node));
+            }
+
+            @Override void vacate() {
+                finish(placeholder.getParent().cookie);
+            }
+
+            @Override void releaseWorkspace() {
+                lease.release();
+            }
+
+            @Override public String toString() {
+                return exec.getOwner().getName() + " for " + runId;
+            }
+
+        }
+
+        /** Releases a workspace lease held by an abandoned setup. */
+        private static final NodeBlockSetup.Release<WorkspaceList.Lease> RELEASE_LEASE = new NodeBlockSetup.Release<WorkspaceList.Lease>() {
+            @Override public void release(WorkspaceList.Lease lease) {
+                lease.release();
+            }
+        };
+
         /**
          * Called when the body closure is complete.
          */
@@ -491,6 +1003,17 @@ public class ExecutorStepExecution extends AbstractStepExecutionImpl {
 
             @Override protected void finished(StepContext context) throws Exception {
                 LOGGER.log(FINE, "finished {0}", cookie);
+                RunningTask runningTask = runningTasks.get(cookie);
+                NodeBlockMetrics.Lifecycle metrics = runningTask != null ? runningTask.metrics : null;
+                if (metrics != null) {
+                    metrics.finished();
+                }
+                Executor exec = StickyExecutors.isEnabled() ? Index.findExecutor(context) : null;
+                Index.finished(context);
+                if (exec != null && reserve(exec, cookie, lease)) {
+                    lease = null;
+                    return;
+                }
                 lease.release();
                 lease = null;
                 finish(cookie);
@@ -508,12 +1031,14 @@ public class ExecutorStepExecution extends AbstractStepExecutionImpl {
                 final TaskListener listener;
                 Launcher launcher;
                 final Run<?, ?> r;
+                Runnable setup = null;
                 try {
                     Executor exec = Executor.currentExecutor();
                     if (exec == null) {
                         throw new IllegalStateException("running task without associated executor thread");
                     }
                     Computer computer = exec.getOwner();
+                    Index.started(context, exec);
                     // Set up context for other steps inside this one.
                     Node node = computer.getNode();
                     if (node == null) {
@@ -527,89 +1052,185 @@ public class ExecutorStepExecution extends AbstractStepExecutionImpl {
                         cookie = UUID.randomUUID().toString();
                         // Switches the label to a self-label, so if the executable is killed and restarted via ExecutorPickle, it will run on the same node:
                         label = computer.getName();
-
-                        EnvVars env = computer.getEnvironment();
-                        env.overrideExpandingAll(computer.buildEnvironment(listener));
-                        env.put(COOKIE_VAR, cookie);
-                        // Cf. CoreEnvironmentContributor:
-                        if (exec.getOwner() instanceof MasterComputer) {
-                            env.put("NODE_NAME", "master");
-                        } else {
-                            env.put("NODE_NAME", label);
-                        }
-                        env.put("EXECUTOR_NUMBER", String.valueOf(exec.getNumber()));
-                        env.put("NODE_LABELS", Util.join(node.getAssignedLabels(), " "));
-
-                        synchronized (runningTasks) {
-                            runningTasks.put(cookie, new RunningTask());
-                        }
-                        // For convenience, automatically allocate a workspace, like WorkspaceStep would:
-                        Job<?,?> j = r.getParent();
-                        if (!(j instanceof TopLevelItem)) {
-                            throw new Exception(j + " must be a top-level job");
+                        WorkspaceAffinityAction.record(r, affinity, node.getNodeName());
+                        RunningTask created = new RunningTask();
+                        created.metrics = metrics;
+                        created.started = System.currentTimeMillis();
+                        runningTasks.put(cookie, created);
+                        if (metrics != null) {
+                            metrics.started();
                         }
-                        FilePath p = node.getWorkspaceFor((TopLevelItem) j);
-                        if (p == null) {
-                            throw new IllegalStateException(node + " is offline");
+                        // If an earlier block of this build kept this executor for us, take over its workspace:
+                        Reserved handedOver = (Reserved) StickyExecutors.claim(PlaceholderTask.this, node.getNodeName());
+                        WorkspaceList.Lease reserved = handedOver != null ? handedOver.lease : null;
+                        if (ASYNC_SETUP) {
+                            // Let the executor go about its business; the body will start once its prerequisites are ready.
+                            setup = setUpLater(exec, computer, node, listener, launcher, r, reserved);
+                        } else {
+                            try {
+                                startBody(exec, computer, node, listener, launcher, r, reserved);
+                            } catch (Exception x) {
+                                runningTasks.remove(cookie);
+                                throw x;
+                            }
                         }
-                        WorkspaceList.Lease lease = computer.getWorkspaceList().allocate(p);
-                        FilePath workspace = lease.path;
-                        // Cf. AbstractBuild.getEnvironment:
-                        env.put("WORKSPACE", workspace.getRemote());
-                        FlowNode flowNode = context.get(FlowNode.class);
-                        flowNode.addAction(new WorkspaceActionImpl(workspace, flowNode));
-                        listener.getLogger().println("Running on " + computer.getDisplayName() + " in " + workspace); // TODO hyperlink
-                        context.newBodyInvoker()
-                                .withContexts(exec, computer, env, workspace)
-                                .withCallback(new Callback(cookie, lease))
-                                .start();
-                        LOGGER.log(FINE, "started {0}", cookie);
                     } else {
                         // just rescheduled after a restart; wait for task to complete
                         LOGGER.log(FINE, "resuming {0}", cookie);
                     }
                 } catch (Exception x) {
+                    Index.finished(context);
                     context.onFailure(x);
                     return;
                 }
                 // wait until the invokeBodyLater call above completes and notifies our Callback object
-                synchronized (runningTasks) {
-                    LOGGER.log(FINE, "waiting on {0}", cookie);
-                    RunningTask runningTask = runningTasks.get(cookie);
-                    if (runningTask == null) {
-                        LOGGER.log(FINE, "running task apparently finished quickly for {0}", cookie);
-                        return;
-                    }
-                    assert runningTask.execution == null;
-                    assert runningTask.launcher == null;
-                    runningTask.launcher = launcher;
-                    runningTask.execution = new AsynchronousExecution() {
-                        @Override public void interrupt(boolean forShutdown) {
-                            if (forShutdown) {
-                                return;
-                            }
-                            LOGGER.log(FINE, "interrupted {0}", cookie);
-                            // TODO save the BodyExecution somehow and call .cancel() here; currently we just interrupt the build as a whole:
-                            Executor masterExecutor = r.getExecutor();
-                            if (masterExecutor != null) {
-                                masterExecutor.interrupt();
-                            } else { // anomalous state; perhaps build already aborted but this was left behind; let user manually cancel executor slot
-                                Executor thisExecutor = super.getExecutor();
-                                if (thisExecutor != null) {
-                                    thisExecutor.recordCauseOfInterruption(r, listener);
-                                }
-                                completed(null);
+                LOGGER.log(FINE, "waiting on {0}", cookie);
+                RunningTask runningTask = runningTasks.get(cookie);
+                if (runningTask == null) {
+                    LOGGER.log(FINE, "running task apparently finished quickly for {0}", cookie);
+                    return;
+                }
+                assert runningTask.launcher == null;
+                runningTask.launcher = launcher;
+                AsynchronousExecution execution = new AsynchronousExecution() {
+                    @Override public void interrupt(boolean forShutdown) {
+                        if (forShutdown) {
+                            return;
+                        }
+                        LOGGER.log(FINE, "interrupted {0}", cookie);
+                        // TODO save the BodyExecution somehow and call .cancel() here; currently we just interrupt the build as a whole:
+                        Executor masterExecutor = r.getExecutor();
+                        if (masterExecutor != null) {
+                            masterExecutor.interrupt();
+                        } else { // anomalous state; perhaps build already aborted but this was left behind; let user manually cancel executor slot
+                            Executor thisExecutor = super.getExecutor();
+                            if (thisExecutor != null) {
+                                thisExecutor.recordCauseOfInterruption(r, listener);
                             }
+                            completed(null);
+                        }
+                    }
+                    @Override public boolean blocksRestart() {
+                        return false;
+                    }
+                    @Override public boolean displayCell() {
+                        return true;
+                    }
+                };
+                if (!runningTask.attach(execution)) {
+                    LOGGER.log(FINE, "running task apparently finished quickly for {0}", cookie);
+                    return;
+                }
+                if (setup != null) {
+                    NodeBlockSetup.submit(setup);
+                }
+                throw execution;
+            }
+
+            private Runnable setUpLater(final Executor exec, final Computer computer, final Node node, final TaskListener listener, final Launcher launcher, final Run<?,?> r, @CheckForNull final WorkspaceList.Lease reserved) {
+                return new Runnable() {
+                    @Override public void run() {
+                        try {
+                            startBody(exec, computer, node, listener, launcher, r, reserved);
+                        } catch (Exception x) {
+                            Index.finished(context);
+                            context.onFailure(x);
+                            finish(cookie);
+                        }
+                    }
+                };
+            }
+
+            /**
+             * Prepares the environment and workspace of the block and starts its body.
+             * @param reserved a workspace to use, rather than allocating one
+             */
+            private void startBody(final Executor exec, final Computer computer, final Node node, final TaskListener listener, final Launcher launcher, Run<?,?> r, @CheckForNull WorkspaceList.Lease reserved) throws Exception {
+                Job<?,?> j = r.getParent();
+                if (!(j instanceof TopLevelItem)) {
+                    throw new Exception(j + " must be a top-level job");
+                }
+                final TopLevelItem item = (TopLevelItem) j;
+                NodeBlockSetup setup = new NodeBlockSetup("node block on " + label, metrics);
+                // These may each involve remote calls, and do not depend on one another:
+                EnvVars cachedEnvironment = EnvironmentCache.get(computer);
+                long environmentGeneration = EnvironmentCache.generation();
+                Future<EnvVars> baseEnvironment = null, nodeEnvironment = null;
+                if (cachedEnvironment == null) {
+                    baseEnvironment = setup.start("environment", new Callable<EnvVars>() {
+                        @Override public EnvVars call() throws Exception {
+                            return computer.getEnvironment();
                         }
-                        @Override public boolean blocksRestart() {
-                            return false;
+                    });
+                    nodeEnvironment = setup.start("node environment", new Callable<EnvVars>() {
+                        @Override public EnvVars call() throws Exception {
+                            return computer.buildEnvironment(listener);
                         }
-                        @Override public boolean displayCell() {
-                            return true;
+                    });
+                }
+                // For convenience, automatically allocate a workspace, like WorkspaceStep would:
+                Future<WorkspaceList.Lease> allocation = reserved != null ? Futures.immediateFuture(reserved) : setup.start("workspace", new Callable<WorkspaceList.Lease>() {
+                    @Override public WorkspaceList.Lease call() throws Exception {
+                        FilePath p = node.getWorkspaceFor(item);
+                        if (p == null) {
+                            throw new IllegalStateException(node + " is offline");
                         }
-                    };
-                    throw runningTask.execution;
+                        return computer.getWorkspaceList().allocate(p);
+                    }
+                }, RELEASE_LEASE);
+                WorkspaceList.Lease lease;
+                EnvVars env;
+                try {
+                    if (cachedEnvironment != null) {
+                        env = cachedEnvironment;
+                    } else {
+                        env = setup.get("environment", baseEnvironment);
+                        env.overrideExpandingAll(setup.get("node environment", nodeEnvironment));
+                        EnvironmentCache.put(computer, env, environmentGeneration);
+                    }
+                    lease = setup.get("workspace", allocation);
+                    final FilePath base = node.getWorkspaceFor(item);
+                    if (reserved == null && base != null && WorkspaceSeeder.applies(base, lease)) {
+                        // Timed as its own stage, so that the workspace stage measures only waiting for the lock:
+                        final WorkspaceList.Lease allocated = lease;
+                        setup.get("workspace seeding", setup.start("workspace seeding", new Callable<Void>() {
+                            @Override public Void call() throws Exception {
+                                WorkspaceSeeder.seed(computer.getWorkspaceList(), base, allocated, listener);
+                                return null;
+                            }
+                        }));
+                    }
+                } catch (Exception x) {
+                    if (reserved != null) {
+                        reserved.release();
+                    } else {
+                        setup.abandon(allocation);
+                    }
+                    throw x;
                 }
+                env.put(COOKIE_VAR, cookie);
+                // Cf. CoreEnvironmentContributor:
+                if (exec.getOwner() instanceof MasterComputer) {
+                    env.put("NODE_NAME", "master");
+                } else {
+                    env.put("NODE_NAME", label);
+                }
+                env.put("EXECUTOR_NUMBER", String.valueOf(exec.getNumber()));
+                env.put("NODE_LABELS", Util.join(node.getAssignedLabels(), " "));
+                FilePath workspace = lease.path;
+                // Cf. AbstractBuild.getEnvironment:
+                env.put("WORKSPACE", workspace.getRemote());
+                FlowNode flowNode = context.get(FlowNode.class);
+                flowNode.addAction(new WorkspaceActionImpl(workspace, flowNode));
+                listener.getLogger().println("Running on " + computer.getDisplayName() + " in " + workspace); // TODO hyperlink
+                if (metrics != null) {
+                    metrics.bodyStarted();
+                }
+                context.newBodyInvoker()
+                        .withContexts(exec, computer, env, workspace)
+                        .withCallback(new Callback(cookie, lease))
+                        .start();
+                LOGGER.log(FINE, "started {0}", cookie);
             }
 
             @Override public PlaceholderTask getParent() {
@@ -621,9 +1242,7 @@ public class ExecutorStepExecution extends AbstractStepExecutionImpl {
             }
 
             @Override public boolean willContinue() {
-                synchronized (runningTasks) {
-                    return runningTasks.containsKey(cookie);
-                }
+                return runningTasks.containsKey(cookie);
             }
 
             @Restricted(DoNotUse.class) // for Jelly
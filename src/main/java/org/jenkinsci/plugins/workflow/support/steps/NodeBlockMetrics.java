@@ -0,0 +1,325 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.support.steps;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import antlr.ANTLRException;
+import hudson.Extension;
+import hudson.init.Terminator;
+import hudson.model.Label;
+import hudson.model.RootAction;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.workflow.support.Counters;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Histograms of how long node blocks spend in each phase: waiting in the queue, each stage of {@link NodeBlockSetup}, and running the body.
+ * Kept per phase and per label as originally requested by the step (not the node eventually chosen),
+ * in canonical form; beyond {@link #MAX_LABELS} distinct labels, further ones are counted together as {@code (other)}.
+ * Each histogram is registered as an MBean, and all are printed in the Prometheus text format at {@code /nodeBlockMetrics/} for administrators,
+ * followed by the other {@link Counters} of this plugin.
+ * Blocks resumed after a restart are not measured.
+ */
+@Restricted(NoExternalUse.class)
+public final class NodeBlockMetrics {
+
+    private static final Logger LOGGER = Logger.getLogger(NodeBlockMetrics.class.getName());
+
+    /** upper bounds of histogram buckets in milliseconds, besides a final unbounded one */
+    private static final long[] BOUNDS = {10, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000, 300000, 900000, 3600000};
+
+    /** How many distinct labels to keep histograms for. */
+    @SuppressFBWarnings(value="MS_SHOULD_BE_FINAL", justification="mutable for scripts")
+    @Restricted(NoExternalUse.class)
+    public static int MAX_LABELS = Integer.getInteger(NodeBlockMetrics.class.getName() + ".MAX_LABELS", 50);
+
+    /** keys are labels, then phases */
+    private static final ConcurrentMap<String,ConcurrentMap<String,Histogram>> histograms = new ConcurrentHashMap<String,ConcurrentMap<String,Histogram>>();
+
+    /** MBeans registered so far; guarded by itself */
+    private static final List<ObjectName> registered = new ArrayList<ObjectName>();
+
+    /** Attributes of each histogram MBean. */
+    public interface HistogramMBean {
+        long getCount();
+        long getTotalMillis();
+        long getMaxMillis();
+        long getMeanMillis();
+        long getMedianMillis();
+        long get95thPercentileMillis();
+        long get99thPercentileMillis();
+    }
+
+    private static final class Histogram implements HistogramMBean {
+
+        final AtomicLongArray buckets = new AtomicLongArray(BOUNDS.length + 1);
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong total = new AtomicLong();
+        final AtomicLong max = new AtomicLong();
+
+        void record(long millis) {
+            int bucket = 0;
+            while (bucket < BOUNDS.length && millis > BOUNDS[bucket]) {
+                bucket++;
+            }
+            buckets.incrementAndGet(bucket);
+            count.incrementAndGet();
+            total.addAndGet(millis);
+            long m;
+            do {
+                m = max.get();
+            } while (millis > m && !max.compareAndSet(m, millis));
+        }
+
+        @Override public long getCount() {
+            return count.get();
+        }
+
+        @Override public long getTotalMillis() {
+            return total.get();
+        }
+
+        @Override public long getMaxMillis() {
+            return max.get();
+        }
+
+        @Override public long getMeanMillis() {
+            long c = count.get();
+            return c > 0 ? total.get() / c : 0;
+        }
+
+        @Override public long getMedianMillis() {
+            return percentile(50);
+        }
+
+        @Override public long get95thPercentileMillis() {
+            return percentile(95);
+        }
+
+        @Override public long get99thPercentileMillis() {
+            return percentile(99);
+        }
+
+        /** Estimated as the upper bound of the bucket containing the percentile, or the maximum if that is smaller. */
+        private long percentile(int p) {
+            long c = count.get();
+            if (c == 0) {
+                return 0;
+            }
+            long rank = (c * p + 99) / 100;
+            long seen = 0;
+            for (int bucket = 0; bucket < BOUNDS.length; bucket++) {
+                seen += buckets.get(bucket);
+                if (seen >= rank) {
+                    return Math.min(BOUNDS[bucket], max.get());
+                }
+            }
+            return max.get();
+        }
+
+    }
+
+    /** Tracks one node block from when it is scheduled. */
+    static final class Lifecycle {
+
+        private final String label;
+        private final long queued = System.nanoTime();
+        private volatile long bodyStarted;
+
+        Lifecycle(@CheckForNull String label) {
+            this.label = label == null ? "(any)" : label.isEmpty() ? "master" : canonical(label);
+        }
+
+        private static String canonical(String label) {
+            try {
+                return Label.parseExpression(label).getExpression();
+            } catch (ANTLRException x) {
+                return label;
+            }
+        }
+
+        /** Called when the block gets an executor. */
+        void started() {
+            record(label, "queue", queued);
+        }
+
+        /** Called when a stage of setting up the block is done. */
+        void stage(@Nonnull String stage, long millis) {
+            histogram(label, stage).record(millis);
+        }
+
+        /** Called as the body is about to start. */
+        void bodyStarted() {
+            bodyStarted = System.nanoTime();
+        }
+
+        /** Called when the body is done. */
+        void finished() {
+            long start = bodyStarted;
+            if (start != 0) {
+                record(label, "body", start);
+            }
+        }
+
+        private static void record(String label, String phase, long since) {
+            histogram(label, phase).record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - since));
+        }
+
+    }
+
+    private static Histogram histogram(String label, String phase) {
+        ConcurrentMap<String,Histogram> forLabel = histograms.get(label);
+        if (forLabel == null && histograms.size() >= MAX_LABELS) {
+            label = "(other)";
+            forLabel = histograms.get(label);
+        }
+        if (forLabel == null) {
+            ConcurrentMap<String,Histogram> created = new ConcurrentHashMap<String,Histogram>();
+            forLabel = histograms.putIfAbsent(label, created);
+            if (forLabel == null) {
+                forLabel = created;
+            }
+        }
+        Histogram histogram = forLabel.get(phase);
+        if (histogram == null) {
+            Histogram created = new Histogram();
+            histogram = forLabel.putIfAbsent(phase, created);
+            if (histogram == null) {
+                histogram = created;
+                register(label, phase, created);
+            }
+        }
+        return histogram;
+    }
+
+    private static void register(String label, String phase, Histogram histogram) {
+        try {
+            ObjectName name = new ObjectName("org.jenkinsci.plugins.workflow:type=NodeBlockMetrics,label=" + ObjectName.quote(label) + ",phase=" + ObjectName.quote(phase));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new StandardMBean(histogram, HistogramMBean.class), name);
+            synchronized (registered) {
+                registered.add(name);
+            }
+        } catch (JMException x) {
+            LOGGER.log(Level.FINE, "could not register histogram of " + phase + " for " + label, x);
+        }
+    }
+
+    /** Unregisters all histograms as Jenkins shuts down, and forgets them, so that a later instance in the same JVM starts afresh. */
+    @Terminator public static void unregister() {
+        List<ObjectName> names;
+        synchronized (registered) {
+            names = new ArrayList<ObjectName>(registered);
+            registered.clear();
+        }
+        histograms.clear();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName name : names) {
+            try {
+                server.unregisterMBean(name);
+            } catch (JMException x) {
+                LOGGER.log(Level.FINE, "could not unregister " + name, x);
+            }
+        }
+    }
+
+    private static void print(PrintWriter w) {
+        w.println("# TYPE node_block_phase_milliseconds histogram");
+        for (Map.Entry<String,ConcurrentMap<String,Histogram>> forLabel : new TreeMap<String,ConcurrentMap<String,Histogram>>(histograms).entrySet()) {
+            for (Map.Entry<String,Histogram> entry : new TreeMap<String,Histogram>(forLabel.getValue()).entrySet()) {
+                String tags = "label=\"" + escape(forLabel.getKey()) + "\",phase=\"" + escape(entry.getKey()) + "\"";
+                Histogram histogram = entry.getValue();
+                long cumulative = 0;
+                for (int bucket = 0; bucket <= BOUNDS.length; bucket++) {
+                    cumulative += histogram.buckets.get(bucket);
+                    w.println("node_block_phase_milliseconds_bucket{" + tags + ",le=\"" + (bucket < BOUNDS.length ? String.valueOf(BOUNDS[bucket]) : "+Inf") + "\"} " + cumulative);
+                }
+                w.println("node_block_phase_milliseconds_sum{" + tags + "} " + histogram.getTotalMillis());
+                w.println("node_block_phase_milliseconds_count{" + tags + "} " + histogram.getCount());
+            }
+        }
+        for (Map.Entry<String,Long> entry : Counters.snapshot().entrySet()) {
+            w.println(entry.getKey() + " " + entry.getValue());
+        }
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    @Restricted(NoExternalUse.class)
+    @Extension public static final class Endpoint implements RootAction {
+
+        @Override public String getIconFileName() {
+            return null;
+        }
+
+        @Override public String getDisplayName() {
+            return null;
+        }
+
+        @Override public String getUrlName() {
+            return "nodeBlockMetrics";
+        }
+
+        @SuppressFBWarnings(value="RCN_REDUNDANT_NULLCHECK_OF_NONNULL_VALUE", justification="TODO 1.653+ switch to Jenkins.getInstanceOrNull")
+        public void doIndex(StaplerResponse rsp) throws IOException {
+            Jenkins j = Jenkins.getInstance();
+            if (j == null) {
+                throw new IllegalStateException("Jenkins is not running");
+            }
+            j.checkPermission(Jenkins.ADMINISTER);
+            rsp.setContentType("text/plain; version=0.0.4; charset=UTF-8");
+            PrintWriter w = rsp.getWriter();
+            print(w);
+            w.flush();
+        }
+
+    }
+
+    private NodeBlockMetrics() {}
+
+}
@@ -0,0 +1,204 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.support.steps;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import hudson.AbortException;
+import hudson.security.ACL;
+import hudson.util.ClassLoaderSanityThreadFactory;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import jenkins.security.ImpersonatingExecutorService;
+import org.jenkinsci.plugins.workflow.support.Counters;
+
+/**
+ * Runs the stages of preparing a node block: computing its environment, allocating its workspace, and so on.
+ * Stages are timed, and awaited with a timeout.
+ * If {@link ExecutorStepExecution#ASYNC_SETUP} is set, the setup as a whole runs off the executor thread and independent stages run concurrently;
+ * otherwise each stage runs as soon as it is started, on the calling thread, and so cannot time out.
+ * Background threads run as {@link ACL#SYSTEM}, like those of {@link jenkins.util.Timer}.
+ * Setups and stages have separate bounded pools, so that a setup waiting for its stages never occupies a thread one of them needs;
+ * work beyond those bounds is queued, and time spent queued counts against {@link ExecutorStepExecution#SETUP_TIMEOUT}.
+ */
+final class NodeBlockSetup {
+
+    private static final Logger LOGGER = Logger.getLogger(NodeBlockSetup.class.getName());
+
+    /** maximum number of node blocks being set up in the background at once */
+    private static final int SETUP_THREADS = 10;
+    /** maximum number of stages running in the background at once; enough for the three independent stages of each setup */
+    private static final int STAGE_THREADS = 3 * SETUP_THREADS;
+
+    private static final ExecutorService setups = pool("ExecutorStepExecution.NodeBlockSetup", SETUP_THREADS);
+    private static final ExecutorService pool = pool("ExecutorStepExecution.NodeBlockSetup.stage", STAGE_THREADS);
+
+    /** A pool of up to the given number of threads, which exit when idle for a minute. */
+    private static ExecutorService pool(String name, int threads) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.MINUTES, new LinkedBlockingQueue<Runnable>(),
+            new NamingThreadFactory(new ClassLoaderSanityThreadFactory(new DaemonThreadFactory()), name));
+        executor.allowCoreThreadTimeOut(true);
+        return new ImpersonatingExecutorService(executor, ACL.SYSTEM);
+    }
+
+    /** Disposes of the result of a stage which is no longer wanted. */
+    interface Release<T> {
+        void release(@Nonnull T result);
+    }
+
+    /** The result of a stage which must be released if the setup is abandoned, even if it completes only later. */
+    private static final class Releasable<T> {
+        final Release<T> release;
+        volatile boolean abandoned;
+        volatile T result;
+        final AtomicBoolean released = new AtomicBoolean();
+        Releasable(Release<T> release) {
+            this.release = release;
+        }
+        void completed(T result) {
+            this.result = result;
+            if (abandoned) {
+                releaseOnce();
+            }
+        }
+        void abandon() {
+            abandoned = true;
+            releaseOnce();
+        }
+        private void releaseOnce() {
+            T r = result;
+            if (r != null && released.compareAndSet(false, true)) {
+                release.release(r);
+            }
+        }
+    }
+
+    private final ExecutorService stages;
+    private final String description;
+    private final @CheckForNull NodeBlockMetrics.Lifecycle metrics;
+    private final Map<Future<?>,Releasable<?>> releasables = new ConcurrentHashMap<Future<?>,Releasable<?>>();
+
+    /**
+     * @param description what is being set up, for messages
+     * @param metrics where to also record stage timings, if anywhere
+     */
+    NodeBlockSetup(@Nonnull String description, @CheckForNull NodeBlockMetrics.Lifecycle metrics) {
+        this.stages = ExecutorStepExecution.ASYNC_SETUP ? pool : MoreExecutors.sameThreadExecutor();
+        this.description = description;
+        this.metrics = metrics;
+    }
+
+    /** Runs setup in the background. */
+    static void submit(@Nonnull Runnable setup) {
+        setups.submit(setup);
+    }
+
+    /** Starts a stage, which may begin running immediately. */
+    <T> Future<T> start(@Nonnull String stage, @Nonnull Callable<T> work) {
+        return start(stage, work, null);
+    }
+
+    /**
+     * Starts a stage whose result holds some resource.
+     * @param release how to dispose of the result if {@link #abandon} is called, whether before or after the stage completes
+     */
+    <T> Future<T> start(@Nonnull final String stage, @Nonnull final Callable<T> work, @CheckForNull Release<T> release) {
+        final Releasable<T> releasable = release != null ? new Releasable<T>(release) : null;
+        Future<T> result = stages.submit(new Callable<T>() {
+            @Override public T call() throws Exception {
+                long start = System.nanoTime();
+                try {
+                    T value = work.call();
+                    if (releasable != null) {
+                        releasable.completed(value);
+                    }
+                    return value;
+                } finally {
+                    record(stage, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                }
+            }
+        });
+        if (releasable != null) {
+            releasables.put(result, releasable);
+        }
+        return result;
+    }
+
+    /** Waits for a stage to complete, rethrowing any error from it. */
+    <T> T get(@Nonnull String stage, @Nonnull Future<T> result) throws Exception {
+        try {
+            return result.get(ExecutorStepExecution.SETUP_TIMEOUT, TimeUnit.SECONDS);
+        } catch (TimeoutException x) {
+            result.cancel(true);
+            throw new AbortException("Timed out after " + ExecutorStepExecution.SETUP_TIMEOUT + "s waiting for " + stage + " of " + description);
+        } catch (ExecutionException x) {
+            Throwable cause = x.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw x;
+        }
+    }
+
+    /**
+     * Gives up on a stage started with a {@link Release}, cancelling it if still running.
+     * Its result is released now if it has completed, or whenever it does.
+     */
+    void abandon(@Nonnull Future<?> result) {
+        result.cancel(true);
+        Releasable<?> releasable = releasables.remove(result);
+        if (releasable != null) {
+            releasable.abandon();
+        }
+    }
+
+    private void record(String stage, long millis) {
+        if (metrics != null) {
+            metrics.stage(stage, millis);
+        }
+        String tags = "{stage=\"" + stage + "\"}";
+        Counters.get("node_block_setup_count" + tags).incrementAndGet();
+        Counters.get("node_block_setup_milliseconds_total" + tags).addAndGet(millis);
+        Counters.max("node_block_setup_milliseconds_max" + tags, millis);
+        LOGGER.log(Level.FINE, "{0} of {1} took {2}ms", new Object[] {stage, description, millis});
+    }
+
+}
@@ -0,0 +1,278 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.support.steps;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.model.queue.CauseOfBlockage;
+import hudson.model.queue.QueueTaskDispatcher;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import jenkins.util.Timer;
+import org.jenkinsci.plugins.workflow.steps.durable_task.Messages;
+import org.jenkinsci.plugins.workflow.support.Counters;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Optionally keeps the executor and workspace of a finished node block reserved for a little while,
+ * so that the next node block of the same build with a matching label can take them over.
+ * The new block still goes through the queue as a task of its own:
+ * the reserved executor is freed as it is scheduled, and {@link Dispatcher} keeps that executor for it until it starts there,
+ * whereupon it takes over the workspace too.
+ * Reservations are given up when they expire, or as soon as the build completes.
+ */
+@Restricted(NoExternalUse.class)
+public final class StickyExecutors {
+
+    private static final Logger LOGGER = Logger.getLogger(StickyExecutors.class.getName());
+
+    /** Whether finished node blocks currently keep their executors at all. */
+    static boolean isEnabled() {
+        return ExecutorStepExecution.STICKY_EXECUTOR_GRACE > 0;
+    }
+
+    /** keys are {@link Run#getExternalizableId}; guarded by itself */
+    private static final Map<String,List<Reservation>> reservations = new HashMap<String,List<Reservation>>();
+
+    /** reservations being handed over, keyed by the task they were handed to */
+    private static final ConcurrentMap<Queue.Task,Reservation> handoffs = new ConcurrentHashMap<Queue.Task,Reservation>();
+
+    private static final AtomicLong hits = Counters.get("node_block_sticky_hits_total");
+    private static final AtomicLong misses = Counters.get("node_block_sticky_misses_total");
+    private static final AtomicLong expired = Counters.get("node_block_sticky_expired_total");
+    private static final AtomicLong idle = Counters.get("node_block_sticky_idle_milliseconds_total");
+
+    /** An executor kept for a build. */
+    static abstract class Reservation {
+
+        final String runId;
+        private final long parked = System.nanoTime();
+
+        Reservation(@Nonnull String runId) {
+            this.runId = runId;
+        }
+
+        /** The name of the node holding the executor. */
+        abstract @Nonnull String getNodeName();
+
+        /** Whether a node block with this label could run here. */
+        abstract boolean matches(@CheckForNull Label label);
+
+        /** Frees the executor, leaving the workspace locked. */
+        abstract void vacate();
+
+        /** Unlocks the workspace. */
+        abstract void releaseWorkspace();
+
+        /** Gives up the executor and workspace. */
+        final void release() {
+            releaseWorkspace();
+            vacate();
+        }
+
+    }
+
+    /** Keeps an executor until it is taken or the grace period elapses. */
+    static void park(@Nonnull final Reservation reservation) {
+        synchronized (reservations) {
+            List<Reservation> forRun = reservations.get(reservation.runId);
+            if (forRun == null) {
+                forRun = new ArrayList<Reservation>();
+                reservations.put(reservation.runId, forRun);
+            }
+            forRun.add(reservation);
+        }
+        LOGGER.log(Level.FINE, "reserved {0}", reservation);
+        Timer.get().schedule(new Runnable() {
+            @Override public void run() {
+                if (remove(reservation)) {
+                    expired.incrementAndGet();
+                    LOGGER.log(Level.FINE, "releasing unused {0}", reservation);
+                    reservation.release();
+                }
+            }
+        }, ExecutorStepExecution.STICKY_EXECUTOR_GRACE, TimeUnit.MILLISECONDS);
+    }
+
+    /** Claims a reserved executor, if the build has one suitable for a node block with the given label. */
+    static @CheckForNull Reservation take(@Nonnull String runId, @CheckForNull Label label) {
+        Reservation taken = null;
+        synchronized (reservations) {
+            List<Reservation> forRun = reservations.get(runId);
+            if (forRun != null) {
+                Iterator<Reservation> it = forRun.iterator();
+                while (it.hasNext()) {
+                    Reservation reservation = it.next();
+                    if (reservation.matches(label)) {
+                        it.remove();
+                        taken = reservation;
+                        break;
+                    }
+                }
+                if (forRun.isEmpty()) {
+                    reservations.remove(runId);
+                }
+            }
+        }
+        if (taken != null) {
+            hits.incrementAndGet();
+            idle.addAndGet(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - taken.parked));
+            LOGGER.log(Level.FINE, "taking over {0}", taken);
+        } else {
+            misses.incrementAndGet();
+        }
+        return taken;
+    }
+
+    /**
+     * Frees a reserved executor for a task about to be scheduled, keeping it for that task until it starts or the grace period elapses.
+     * @see #claim
+     */
+    static void handOver(@Nonnull final Reservation reservation, @Nonnull final Queue.Task task) {
+        handoffs.put(task, reservation);
+        reservation.vacate();
+        Timer.get().schedule(new Runnable() {
+            @Override public void run() {
+                if (handoffs.remove(task, reservation)) {
+                    expired.incrementAndGet();
+                    LOGGER.log(Level.FINE, "{0} did not start on {1} in time", new Object[] {task, reservation});
+                    reservation.releaseWorkspace();
+                    Queue.getInstance().scheduleMaintenance();
+                }
+            }
+        }, ExecutorStepExecution.STICKY_EXECUTOR_GRACE, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Called as a task starts running.
+     * @return the reservation handed over to it, if still valid, whose workspace it now owns
+     */
+    static @CheckForNull Reservation claim(@Nonnull Queue.Task task, @Nonnull String nodeName) {
+        Reservation reservation = handoffs.remove(task);
+        if (reservation == null) {
+            return null;
+        }
+        if (!reservation.getNodeName().equals(nodeName)) { // should not happen given Dispatcher
+            reservation.releaseWorkspace();
+            return null;
+        }
+        return reservation;
+    }
+
+    private static boolean remove(Reservation reservation) {
+        synchronized (reservations) {
+            List<Reservation> forRun = reservations.get(reservation.runId);
+            if (forRun == null || !forRun.remove(reservation)) {
+                return false;
+            }
+            if (forRun.isEmpty()) {
+                reservations.remove(reservation.runId);
+            }
+        }
+        idle.addAndGet(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - reservation.parked));
+        return true;
+    }
+
+    /** Keeps executors being handed over for the tasks they were handed to. */
+    @Restricted(NoExternalUse.class)
+    @Extension public static final class Dispatcher extends QueueTaskDispatcher {
+
+        @Override public CauseOfBlockage canTake(Node node, Queue.BuildableItem item) {
+            if (handoffs.isEmpty()) {
+                return null;
+            }
+            final String name = node.getNodeName();
+            final Reservation own = handoffs.get(item.task);
+            if (own != null) {
+                if (own.getNodeName().equals(name)) {
+                    return null;
+                }
+                return new CauseOfBlockage() {
+                    @Override public String getShortDescription() {
+                        return Messages.ExecutorStepExecution_waiting_for_kept_executor(own.getNodeName());
+                    }
+                };
+            }
+            int kept = 0;
+            for (Reservation reservation : handoffs.values()) {
+                if (reservation.getNodeName().equals(name)) {
+                    kept++;
+                }
+            }
+            if (kept == 0) {
+                return null;
+            }
+            Computer c = node.toComputer();
+            if (c != null && c.countIdle() > kept) {
+                return null;
+            }
+            return new CauseOfBlockage() {
+                @Override public String getShortDescription() {
+                    return Messages.ExecutorStepExecution_executor_kept(name);
+                }
+            };
+        }
+
+    }
+
+    @Restricted(NoExternalUse.class)
+    @Extension public static final class ReleaseOnCompletion extends RunListener<Run<?,?>> {
+
+        @Override public void onCompleted(Run<?,?> run, TaskListener listener) {
+            List<Reservation> forRun;
+            synchronized (reservations) {
+                forRun = reservations.remove(run.getExternalizableId());
+            }
+            if (forRun != null) {
+                for (Reservation reservation : forRun) {
+                    idle.addAndGet(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - reservation.parked));
+                    reservation.release();
+                }
+            }
+        }
+
+    }
+
+    private StickyExecutors() {}
+
+}
@@ -0,0 +1,132 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.support.steps;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.InvisibleAction;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.Run;
+import hudson.model.queue.CauseOfBlockage;
+import hudson.model.queue.QueueTaskDispatcher;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+import org.jenkinsci.plugins.workflow.steps.durable_task.Messages;
+import org.jenkinsci.plugins.workflow.support.ComputerIndex;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Records which node each node block of a build ran on, so that the corresponding block in a later build can prefer the same node,
+ * where its workspace is likely to be warm.
+ * A block is identified by its label together with the ID of its {@link FlowNode}, which is stable so long as the script is not changed much.
+ * When a preference is known, other nodes are refused for up to {@link ExecutorStepExecution#AFFINITY_WAIT} seconds, after which any matching node may be used.
+ */
+@Restricted(NoExternalUse.class)
+public final class WorkspaceAffinityAction extends InvisibleAction {
+
+    /** how many earlier builds to search for a preference */
+    private static final int HISTORY = 10;
+
+    /** keys are from {@link #key}; values are node names; guarded by the class */
+    private final Map<String,String> nodes = new HashMap<String,String>();
+
+    static @Nonnull String key(@CheckForNull String label, @Nonnull FlowNode node) {
+        return (label != null ? label : "") + "#" + node.getId();
+    }
+
+    /** Notes that a block is running on a given node. */
+    static void record(@Nonnull Run<?,?> run, @CheckForNull String key, @Nonnull String node) {
+        if (ExecutorStepExecution.AFFINITY_WAIT <= 0 || key == null) {
+            return;
+        }
+        synchronized (WorkspaceAffinityAction.class) {
+            WorkspaceAffinityAction action = run.getAction(WorkspaceAffinityAction.class);
+            if (action == null) {
+                action = new WorkspaceAffinityAction();
+                run.addAction(action);
+            }
+            action.nodes.put(key, node);
+        }
+    }
+
+    /** Finds the node on which a block last ran in a recent build. */
+    static @CheckForNull String lookup(@Nonnull Run<?,?> run, @Nonnull String key) {
+        if (ExecutorStepExecution.AFFINITY_WAIT <= 0) {
+            return null;
+        }
+        Run<?,?> previous = run.getPreviousBuild();
+        for (int i = 0; previous != null && i < HISTORY; i++, previous = previous.getPreviousBuild()) {
+            WorkspaceAffinityAction action = previous.getAction(WorkspaceAffinityAction.class);
+            if (action != null) {
+                synchronized (WorkspaceAffinityAction.class) {
+                    String node = action.nodes.get(key);
+                    if (node != null) {
+                        return node;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    /** Holds node blocks back from nodes other than their preferred one, for a while. */
+    @Restricted(NoExternalUse.class)
+    @Extension public static final class Dispatcher extends QueueTaskDispatcher {
+
+        @Override public CauseOfBlockage canTake(Node node, Queue.BuildableItem item) {
+            final long wait = ExecutorStepExecution.AFFINITY_WAIT;
+            if (wait <= 0 || !(item.task instanceof ExecutorStepExecution.PlaceholderTask)) {
+                return null;
+            }
+            final String preferred = ((ExecutorStepExecution.PlaceholderTask) item.task).getPreferredNode();
+            if (preferred == null || preferred.equals(node.getNodeName()) || System.currentTimeMillis() - item.getInQueueSince() >= TimeUnit.SECONDS.toMillis(wait)) {
+                return null;
+            }
+            Computer c = ComputerIndex.getComputer(preferred);
+            Node n = c != null ? c.getNode() : null;
+            if (n == null || c.isOffline() || !c.isAcceptingTasks()) {
+                return null; // not worth waiting for
+            }
+            Label label = item.task.getAssignedLabel();
+            if (label != null && !label.contains(n)) {
+                return null;
+            }
+            return new CauseOfBlockage() {
+                @Override public String getShortDescription() {
+                    return Messages.ExecutorStepExecution_waiting_for_workspace_affinity(wait, preferred);
+                }
+            };
+        }
+
+    }
+
+}
@@ -0,0 +1,233 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.support.steps;
+
+import hudson.FilePath;
+import hudson.model.Computer;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import hudson.slaves.WorkspaceList;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import jenkins.MasterToSlaveFileCallable;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Optionally fills a freshly allocated workspace variant such as {@code @2} with a clone of an idle sibling,
+ * so that a concurrent build need not check out and compile everything from scratch.
+ * Cloning uses {@code cp --reflink=always}, copy-on-write where the file system supports it,
+ * so it is only attempted on agents with a GNU-compatible {@code cp}; it fails rather than falling back to a full copy.
+ * A sibling is only used if it can be locked right away, without creating yet another variant.
+ * Any failure merely leaves the workspace empty, as it would have been anyway.
+ * Since cloning may take a while, callers should not run it on the thread of a Pipeline program.
+ */
+final class WorkspaceSeeder {
+
+    private static final Logger LOGGER = Logger.getLogger(WorkspaceSeeder.class.getName());
+
+    /** milliseconds to wait for a busy sibling before trying the next one */
+    private static final long LOCK_WAIT = 100;
+
+    /** Whether {@link #seed} would do anything for this lease. */
+    static boolean applies(@Nonnull FilePath base, @Nonnull WorkspaceList.Lease lease) {
+        return ExecutorStepExecution.SEED_WORKSPACES && !lease.path.getRemote().equals(base.getRemote());
+    }
+
+    /**
+     * Seeds a workspace if it is a new variant of its base workspace.
+     * @param workspaces the list from which {@code lease} was allocated
+     * @param base the workspace originally requested
+     * @param lease the workspace actually allocated
+     */
+    static void seed(@Nonnull WorkspaceList workspaces, @Nonnull FilePath base, @Nonnull WorkspaceList.Lease lease, @Nonnull TaskListener listener) throws InterruptedException {
+        if (!applies(base, lease)) {
+            return;
+        }
+        try {
+            List<String> siblings = lease.path.act(new Siblings(base.getName()));
+            if (siblings == null) { // not empty, so presumably already seeded or in use
+                return;
+            }
+            FilePath parent = lease.path.getParent();
+            for (String name : siblings) {
+                FilePath sibling = parent.child(name);
+                WorkspaceList.Lease source = tryAcquire(workspaces, sibling);
+                if (source == null) {
+                    continue; // in use by some other build
+                }
+                try {
+                    long start = System.nanoTime();
+                    if (lease.path.act(new Clone(sibling.getRemote()))) {
+                        listener.getLogger().println("Seeded " + lease.path + " from " + sibling + " in " + (System.nanoTime() - start) / 1000000 + "ms");
+                    } else {
+                        LOGGER.log(Level.FINE, "could not clone {0} to {1}", new Object[] {sibling, lease.path});
+                    }
+                    return;
+                } finally {
+                    source.release();
+                }
+            }
+        } catch (IOException x) {
+            LOGGER.log(Level.FINE, "could not seed " + lease.path, x);
+        }
+    }
+
+    /**
+     * Locks a workspace if it is free or becomes free within {@link #LOCK_WAIT}.
+     * Unlike {@link WorkspaceList#allocate}, never substitutes a variant.
+     */
+    private static @CheckForNull WorkspaceList.Lease tryAcquire(@Nonnull final WorkspaceList workspaces, @Nonnull final FilePath path) throws InterruptedException {
+        final AtomicBoolean wanted = new AtomicBoolean(true);
+        Future<WorkspaceList.Lease> acquisition = Computer.threadPoolForRemoting.submit(new Callable<WorkspaceList.Lease>() {
+            @Override public WorkspaceList.Lease call() throws InterruptedException {
+                WorkspaceList.Lease lease = workspaces.acquire(path);
+                if (!wanted.compareAndSet(true, false)) { // gave up already
+                    lease.release();
+                    return null;
+                }
+                return lease;
+            }
+        });
+        try {
+            return acquisition.get(LOCK_WAIT, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException x) {
+            if (wanted.compareAndSet(true, false)) {
+                acquisition.cancel(true);
+                return null;
+            }
+            // acquired just now, so will not block
+        } catch (ExecutionException x) {
+            LOGGER.log(Level.FINE, "could not lock " + path, x);
+            return null;
+        }
+        try {
+            return acquisition.get();
+        } catch (ExecutionException x) {
+            LOGGER.log(Level.FINE, "could not lock " + path, x);
+            return null;
+        }
+    }
+
+    /** Lists existing sibling workspaces, most recently modified first, or null if this workspace is not empty. */
+    private static final class Siblings extends MasterToSlaveFileCallable<List<String>> {
+
+        private final String base;
+
+        Siblings(String base) {
+            this.base = base;
+        }
+
+        @Override public List<String> invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+            String[] contents = f.list();
+            if (contents != null && contents.length > 0) {
+                return null;
+            }
+            Pattern variant = Pattern.compile(Pattern.quote(base) + "(" + Pattern.quote(WorkspaceList.COMBINATOR) + "\\d+)?");
+            final Map<String,Long> modified = new HashMap<String,Long>();
+            File parent = f.getParentFile();
+            File[] candidates = parent != null ? parent.listFiles() : null;
+            if (candidates != null) {
+                for (File candidate : candidates) {
+                    if (!candidate.equals(f) && candidate.isDirectory() && variant.matcher(candidate.getName()).matches()) {
+                        String[] children = candidate.list();
+                        if (children != null && children.length > 0) {
+                            modified.put(candidate.getName(), candidate.lastModified());
+                        }
+                    }
+                }
+            }
+            List<String> names = new ArrayList<String>(modified.keySet());
+            Collections.sort(names, new Comparator<String>() {
+                @Override public int compare(String a, String b) {
+                    return modified.get(b).compareTo(modified.get(a));
+                }
+            });
+            return names;
+        }
+
+        private static final long serialVersionUID = 1L;
+
+    }
+
+    /** Clones the contents of a directory into this one, cleaning up after any failure. */
+    private static final class Clone extends MasterToSlaveFileCallable<Boolean> {
+
+        private final String source;
+
+        Clone(String source) {
+            this.source = source;
+        }
+
+        @Override public Boolean invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+            if (File.pathSeparatorChar != ':') {
+                return false;
+            }
+            if (!f.isDirectory() && !f.mkdirs()) {
+                return false;
+            }
+            List<String> command = new ArrayList<String>();
+            command.add("cp");
+            command.add("-a");
+            command.add("--reflink=always");
+            command.add(source + "/.");
+            command.add(f.getAbsolutePath());
+            Process proc = new ProcessBuilder(command).redirectErrorStream(true).start();
+            proc.getOutputStream().close();
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            IOUtils.copy(proc.getInputStream(), output);
+            int status = proc.waitFor();
+            if (status == 0) {
+                return true;
+            }
+            LOGGER.log(Level.FINE, "{0} exited with {1}: {2}", new Object[] {command, status, output});
+            new FilePath(f).deleteContents();
+            return false;
+        }
+
+        private static final long serialVersionUID = 1L;
+
+    }
+
+    private WorkspaceSeeder() {}
+
+}
@@ -33,10 +33,22 @@ public class WorkspaceStepExecution extends AbstractStepExecutionImpl {
     @StepContextParameter private transient Run<?,?> run;
     @StepContextParameter private transient TaskListener listener;
     @StepContextParameter private transient FlowNode flowNode;
+    /** {@link WorkspaceStep#getDir}, kept for {@link #onResume} */
+    private String dir;
+    /** null until the body starts; guarded by this */
     private BodyExecution body;
+    /** set if stopped before the body started; guarded by this */
+    private transient Throwable stopped;
 
     @Override
     public boolean start() throws Exception {
+        dir = step.getDir();
+        begin();
+        return false;
+    }
+
+    /** Allocates the workspace and starts the body, perhaps after seeding the workspace in the background. */
+    private void begin() throws Exception {
         Job<?,?> job = run.getParent();
         if (!(job instanceof TopLevelItem)) {
             throw new Exception(job + " must be a top-level job");
@@ -45,22 +57,78 @@ public class WorkspaceStepExecution extends AbstractStepExecutionImpl {
         if (node == null) {
             throw new Exception("computer does not correspond to a live node");
         }
-        WorkspaceList.Lease lease;
-        String dir = step.getDir();
+        FilePath baseWorkspace;
         if (dir == null) {
-            FilePath baseWorkspace = node.getWorkspaceFor((TopLevelItem) job);
+            baseWorkspace = node.getWorkspaceFor((TopLevelItem) job);
             if (baseWorkspace == null) {
                 throw new IllegalStateException(node + " is offline");
             }
-            lease = computer.getWorkspaceList().allocate(baseWorkspace);
         } else {
             FilePath rootPath = node.getRootPath();
             if (rootPath == null) {
                 throw new IllegalStateException(node + " is offline");
             }
-            FilePath baseWorkspace = rootPath.child(dir);
-            lease = computer.getWorkspaceList().allocate(baseWorkspace);
+            baseWorkspace = rootPath.child(dir);
+        }
+        final WorkspaceList.Lease lease = computer.getWorkspaceList().allocate(baseWorkspace);
+        if (!WorkspaceSeeder.applies(baseWorkspace, lease)) {
+            startBodyUnlessStopped(lease);
+            return;
+        }
+        // Cloning may take a while, so do not hold up the program meanwhile:
+        final FilePath base = baseWorkspace;
+        Computer.threadPoolForRemoting.submit(new Runnable() {
+            @Override public void run() {
+                try {
+                    WorkspaceSeeder.seed(computer.getWorkspaceList(), base, lease, listener);
+                    startBodyUnlessStopped(lease);
+                } catch (Exception x) {
+                    lease.release();
+                    getContext().onFailure(x);
+                }
+            }
+        });
+    }
+
+    /** Restarts a step which had not yet started its body, for example because the workspace was still being seeded. */
+    @Override
+    public void onResume() {
+        synchronized (this) {
+            if (body != null) {
+                return;
+            }
+        }
+        // The lease and any clone in progress died with the old session, so begin again; a partial clone is reused as is.
+        Computer.threadPoolForRemoting.submit(new Runnable() {
+            @Override public void run() {
+                StepContext context = getContext();
+                try {
+                    computer = context.get(Computer.class);
+                    run = context.get(Run.class);
+                    listener = context.get(TaskListener.class);
+                    flowNode = context.get(FlowNode.class);
+                    if (computer == null || run == null || listener == null || flowNode == null) {
+                        throw new IllegalStateException("missing context to resume " + context);
+                    }
+                    begin();
+                } catch (Exception x) {
+                    context.onFailure(x);
+                }
+            }
+        });
+    }
+
+    private void startBodyUnlessStopped(WorkspaceList.Lease lease) throws IOException, InterruptedException {
+        synchronized (this) {
+            if (stopped == null) {
+                startBody(lease);
+                return;
+            }
         }
+        lease.release();
+    }
+
+    private void startBody(WorkspaceList.Lease lease) throws IOException, InterruptedException {
         FilePath workspace = lease.path; // may be baseWorkspace + @2, @3, etc.
         flowNode.addAction(new WorkspaceActionImpl(workspace, flowNode));
         listener.getLogger().println("Running in " + workspace);
@@ -71,7 +139,6 @@ public class WorkspaceStepExecution extends AbstractStepExecutionImpl {
                     workspace)
                 .withCallback(new Callback(lease))
                 .start();
-        return false;
     }
 
     private static final class ExpanderImpl extends EnvironmentExpander {
@@ -87,8 +154,21 @@ public class WorkspaceStepExecution extends AbstractStepExecutionImpl {
 
     @Override
     public void stop(Throwable cause) throws Exception {
-        if (body!=null)
-            body.cancel(cause);
+        BodyExecution b;
+        synchronized (this) {
+            b = body;
+            if (b == null) { // still seeding, or not yet started
+                if (stopped != null) {
+                    return;
+                }
+                stopped = cause;
+            }
+        }
+        if (b != null) {
+            b.cancel(cause);
+        } else {
+            getContext().onFailure(cause);
+        }
     }
 
     @SuppressFBWarnings(value="SE_BAD_FIELD", justification="lease is pickled")
@@ -0,0 +1,87 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.steps.durable_task;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.jenkinsci.plugins.workflow.support.Counters;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Checks the per-node limits of {@link CheckScheduler}, at its default of two checks per node.
+ */
+public class CheckSchedulerTest {
+
+    @Test public void parkBehindSaturatedNode() throws Exception {
+        final CountDownLatch hung = new CountDownLatch(1);
+        final AtomicInteger running = new AtomicInteger();
+        final CountDownLatch saturated = new CountDownLatch(2);
+        final CountDownLatch parkedRan = new CountDownLatch(1);
+        Runnable hangs = new Runnable() {
+            @Override public void run() {
+                running.incrementAndGet();
+                saturated.countDown();
+                try {
+                    hung.await();
+                } catch (InterruptedException x) {
+                    throw new AssertionError(x);
+                }
+            }
+        };
+        long deferrals = Counters.get("durable_task_check_deferrals_total").get();
+        CheckScheduler.submit("hung", hangs);
+        CheckScheduler.submit("hung", hangs);
+        assertTrue(saturated.await(1, TimeUnit.MINUTES));
+        CheckScheduler.submit("hung", new Runnable() {
+            @Override public void run() {
+                parkedRan.countDown();
+            }
+        });
+        // A healthy node is not held up meanwhile:
+        final CountDownLatch healthy = new CountDownLatch(1);
+        CheckScheduler.submit("healthy", new Runnable() {
+            @Override public void run() {
+                healthy.countDown();
+            }
+        });
+        assertTrue(healthy.await(1, TimeUnit.MINUTES));
+        assertFalse("third check must be parked while two are running", parkedRan.await(1, TimeUnit.SECONDS));
+        assertEquals(2, running.get());
+        assertEquals(deferrals + 1, Counters.get("durable_task_check_deferrals_total").get());
+        assertEquals(Long.valueOf(1), Counters.snapshot().get("durable_task_checks_parked"));
+        hung.countDown();
+        assertTrue(parkedRan.await(1, TimeUnit.MINUTES));
+        assertEquals(Long.valueOf(0), Counters.snapshot().get("durable_task_checks_parked"));
+        // Once idle, neither node is remembered:
+        long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(1);
+        while (CheckScheduler.isTracked("hung") || CheckScheduler.isTracked("healthy")) {
+            assertTrue("idle nodes still tracked", System.nanoTime() < deadline);
+            Thread.sleep(100);
+        }
+    }
+
+}
@@ -0,0 +1,73 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.steps.durable_task;
+
+import hudson.model.Computer;
+import hudson.slaves.DumbSlave;
+import hudson.slaves.OfflineCause;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class NodeLivenessTest {
+
+    @Rule public JenkinsRule j = new JenkinsRule();
+
+    @SuppressWarnings("SleepWhileInLoop")
+    @Test public void followsNodes() throws Exception {
+        assertFalse(NodeLiveness.isOnline("nonexistent"));
+        assertTrue(NodeLiveness.isOnline("")); // the master
+        DumbSlave s = j.createOnlineSlave();
+        String name = s.getNodeName();
+        Computer c = s.toComputer();
+        assertTrue(NodeLiveness.isOnline(name));
+        Object connection = NodeLiveness.current(name);
+        assertNotNull(connection);
+        c.disconnect(new OfflineCause.ByCLI("testing")).get();
+        assertTrue(NodeLiveness.isOffline(name));
+        assertNull(NodeLiveness.current(name));
+        final CountDownLatch back = new CountDownLatch(1);
+        NodeLiveness.whenOnline(name, new Runnable() {
+            @Override public void run() {
+                back.countDown();
+            }
+        });
+        assertEquals(1, back.getCount());
+        c.connect(false).get();
+        assertTrue(back.await(1, TimeUnit.MINUTES));
+        assertTrue(NodeLiveness.isOnline(name));
+        assertNotSame("a new connection", connection, NodeLiveness.current(name));
+        // Looked up through ComputerIndex, which must notice the removal:
+        j.jenkins.removeNode(s);
+        while (c.isOnline()) {
+            Thread.sleep(100);
+        }
+        assertFalse(NodeLiveness.isOnline(name));
+    }
+
+}
@@ -0,0 +1,142 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.steps.durable_task;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Functions;
+import hudson.Launcher;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import hudson.slaves.DumbSlave;
+import hudson.util.StreamTaskListener;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.jenkinsci.plugins.durabletask.BourneShellScript;
+import org.jenkinsci.plugins.durabletask.Controller;
+import org.jenkinsci.plugins.durabletask.DurableTask;
+import static org.junit.Assert.*;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+/**
+ * Each call to {@link RemoteCheck} is a single {@link VirtualChannel#call}, so everything needed to complete a step must come back from one call.
+ */
+public class RemoteCheckTest {
+
+    @Rule public JenkinsRule j = new JenkinsRule();
+
+    private VirtualChannel channel;
+    private FilePath ws;
+    private Launcher launcher;
+    private TaskListener listener;
+
+    @Before public void agent() throws Exception {
+        Assume.assumeFalse("TODO Windows equivalent TBD", Functions.isWindows());
+        DumbSlave s = j.createOnlineSlave();
+        channel = s.getChannel();
+        ws = s.getWorkspaceRoot().child("ws");
+        ws.mkdirs();
+        listener = StreamTaskListener.fromStderr();
+        launcher = s.createLauncher(listener);
+    }
+
+    private Controller launch(String script) throws Exception {
+        DurableTask task = new BourneShellScript(script);
+        task.captureOutput();
+        return task.launch(new EnvVars(), ws, launcher, listener);
+    }
+
+    private static String log(RemoteCheck.Result result) throws Exception {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        result.log.writeTo(buf);
+        return buf.toString("UTF-8");
+    }
+
+    @Test public void exitInOneRoundTrip() throws Exception {
+        Controller controller = launch("echo to log >&2; echo captured; exit 3");
+        RemoteCheck.Result result = RemoteCheck.awaitExit(channel, new RemoteCheck.Request(controller, ws.getRemote(), true, 0, false), 60000);
+        assertNull(result.error);
+        assertFalse(result.missing);
+        assertEquals(Integer.valueOf(3), result.exitCode);
+        assertTrue(log(result).contains("to log"));
+        assertNotNull(result.output);
+        assertEquals("captured\n", result.output.decode("UTF-8"));
+        result.controller.cleanup(ws);
+    }
+
+    @Test public void pollingFinishesWithTheExit() throws Exception {
+        Controller controller = launch("echo early >&2; sleep 2; echo late >&2; echo captured");
+        StringBuilder log = new StringBuilder();
+        RemoteCheck.Result result;
+        int checks = 0;
+        do {
+            Thread.sleep(100);
+            result = RemoteCheck.check(channel, Collections.singletonList(new RemoteCheck.Request(controller, ws.getRemote(), true, 0, false))).get(0);
+            assertNull(result.error);
+            controller = result.controller;
+            log.append(log(result));
+            checks++;
+            if (result.exitCode == null) {
+                assertNull("no captured output before exit", result.output);
+            }
+        } while (result.exitCode == null);
+        assertTrue("took " + checks + " checks", checks > 1);
+        // The check which found the exit also brought the rest of the log and the captured output:
+        assertEquals(Integer.valueOf(0), result.exitCode);
+        assertTrue(log.toString(), log.toString().contains("early"));
+        assertTrue(log.toString(), log.toString().contains("late"));
+        assertNotNull(result.output);
+        assertEquals("captured\n", result.output.decode("UTF-8"));
+        controller.cleanup(ws);
+    }
+
+    @Test public void severalTasksInOneRoundTrip() throws Exception {
+        FilePath missing = ws.sibling("missing");
+        Controller first = launch("echo one");
+        Controller second = launch("echo two; exit 1");
+        // Once both have exited, check them and a deleted workspace together:
+        RemoteCheck.awaitExit(channel, new RemoteCheck.Request(second, ws.getRemote(), false, 0, false), 60000);
+        RemoteCheck.awaitExit(channel, new RemoteCheck.Request(first, ws.getRemote(), false, 0, false), 60000);
+        List<RemoteCheck.Result> results = RemoteCheck.check(channel, Arrays.asList(
+                new RemoteCheck.Request(first, ws.getRemote(), true, 0, false),
+                new RemoteCheck.Request(second, ws.getRemote(), true, 0, false),
+                new RemoteCheck.Request(first, missing.getRemote(), true, 0, false)));
+        assertEquals(3, results.size());
+        assertEquals(Integer.valueOf(0), results.get(0).exitCode);
+        assertEquals("one\n", results.get(0).output.decode("UTF-8"));
+        assertEquals(Integer.valueOf(1), results.get(1).exitCode);
+        assertEquals("two\n", results.get(1).output.decode("UTF-8"));
+        assertTrue(results.get(2).missing);
+        first.cleanup(ws);
+        second.cleanup(ws);
+    }
+
+}
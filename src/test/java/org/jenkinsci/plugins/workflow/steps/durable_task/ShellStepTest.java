@@ -28,6 +28,7 @@ import org.jenkinsci.plugins.workflow.steps.AbstractStepImpl;
 import org.jenkinsci.plugins.workflow.steps.BodyExecutionCallback;
 import org.jenkinsci.plugins.workflow.steps.BodyInvoker;
 import org.jenkinsci.plugins.workflow.steps.StepConfigTester;
+import org.jenkinsci.plugins.workflow.support.Counters;
 import org.jenkinsci.plugins.workflow.support.visualization.table.FlowGraphTable;
 import org.jenkinsci.plugins.workflow.support.visualization.table.FlowGraphTable.Row;
 import static org.junit.Assert.*;
@@ -223,6 +224,25 @@ public class ShellStepTest {
         j.assertLogContains("SOME PROBLEM HERE", j.assertBuildStatus(Result.FAILURE, p.scheduleBuild2(0)));
     }
 
+    @Test public void returnStdoutLimit() throws Exception {
+        Assume.assumeFalse("TODO Windows equivalent TBD", Functions.isWindows());
+        DurableTaskStep.MAX_RETURN_STDOUT = 5;
+        try {
+            WorkflowJob p = j.jenkins.createProject(WorkflowJob.class, "p");
+            p.setDefinition(new CpsFlowDefinition("node {echo \"got <${sh script: 'echo hello world', returnStdout: true}>\"}", true));
+            WorkflowRun b = j.assertBuildStatusSuccess(p.scheduleBuild2(0));
+            j.assertLogContains("got <hello>", b);
+            j.assertLogContains("exceeded the limit of 5 bytes", b);
+            DurableTaskStep.FAIL_ON_STDOUT_OVERFLOW = true;
+            b = j.assertBuildStatus(Result.FAILURE, p.scheduleBuild2(0));
+            j.assertLogContains("exceeded the limit of 5 bytes", b);
+            j.assertLogNotContains("got <", b);
+        } finally {
+            DurableTaskStep.MAX_RETURN_STDOUT = 0;
+            DurableTaskStep.FAIL_ON_STDOUT_OVERFLOW = false;
+        }
+    }
+
     @Issue("JENKINS-26133")
     @Test public void returnStatus() throws Exception {
         WorkflowJob p = j.jenkins.createProject(WorkflowJob.class, "p");
@@ -245,6 +265,98 @@ public class ShellStepTest {
         }
     }
 
+    @Test public void batching() throws Exception {
+        Assume.assumeFalse("TODO Windows equivalent TBD", Functions.isWindows());
+        DurableTaskStep.USE_BATCHING = true;
+        try {
+            j.createSlave("remote", null, null);
+            WorkflowJob p = j.jenkins.createProject(WorkflowJob.class, "p");
+            p.setDefinition(new CpsFlowDefinition("node('remote') {parallel a: {sh 'echo first a; sleep 1; echo second a'}, b: {sh 'echo first b; sleep 2; echo second b'}, c: {sh 'sleep 1; exit 3'}}", true));
+            WorkflowRun b = j.assertBuildStatus(Result.FAILURE, p.scheduleBuild2(0));
+            j.assertLogContains("second a", b);
+            j.assertLogContains("second b", b);
+            j.assertLogContains("script returned exit code 3", b);
+        } finally {
+            DurableTaskStep.USE_BATCHING = false;
+        }
+    }
+
+    @Test public void watching() throws Exception {
+        Assume.assumeFalse("TODO Windows equivalent TBD", Functions.isWindows());
+        DurableTaskStep.USE_WATCHING = true;
+        try {
+            j.createSlave("remote", null, null);
+            WorkflowJob p = j.jenkins.createProject(WorkflowJob.class, "p");
+            p.setDefinition(new CpsFlowDefinition("node('remote') {sh 'echo first; sleep 1; echo second'; echo \"got ${sh script: 'echo out', returnStdout: true}\"; sh 'exit 3'}", true));
+            WorkflowRun b = j.assertBuildStatus(Result.FAILURE, p.scheduleBuild2(0));
+            j.assertLogContains("first", b);
+            j.assertLogContains("second", b);
+            j.assertLogContains("got out", b);
+            j.assertLogContains("script returned exit code 3", b);
+        } finally {
+            DurableTaskStep.USE_WATCHING = false;
+        }
+    }
+
+    @Test public void compressedLog() throws Exception {
+        Assume.assumeFalse("TODO Windows equivalent TBD", Functions.isWindows());
+        DurableTaskStep.COMPRESS_LOG = true;
+        try {
+            j.createSlave("remote", null, null);
+            long bytes = Counters.get("durable_task_log_bytes_total").get();
+            long transferred = Counters.get("durable_task_log_bytes_transferred_total").get();
+            WorkflowJob p = j.jenkins.createProject(WorkflowJob.class, "p");
+            p.setDefinition(new CpsFlowDefinition("node('remote') {sh 'set +x; i=0; while [ $i -lt 500 ]; do echo repetitive line $i; i=$((i+1)); done; echo done'}", true));
+            WorkflowRun b = j.assertBuildStatusSuccess(p.scheduleBuild2(0));
+            j.assertLogContains("repetitive line 0\n", b);
+            j.assertLogContains("repetitive line 499\n", b);
+            j.assertLogContains("done", b);
+            long bytesSince = Counters.get("durable_task_log_bytes_total").get() - bytes;
+            long transferredSince = Counters.get("durable_task_log_bytes_transferred_total").get() - transferred;
+            assertTrue("copied " + bytesSince + " bytes", bytesSince >= 500 * "repetitive line 0\n".length());
+            assertTrue("transferred " + transferredSince + " bytes", transferredSince > 0 && transferredSince < bytesSince);
+        } finally {
+            DurableTaskStep.COMPRESS_LOG = false;
+        }
+    }
+
+    @Test public void throttledStateSaves() throws Exception {
+        Assume.assumeFalse("TODO Windows equivalent TBD", Functions.isWindows());
+        // Too long and too large to ever be reached here, so only the final flush saves:
+        DurableTaskStep.SAVE_STATE_INTERVAL = 0;
+        DurableTaskStep.SAVE_STATE_BYTES = 1024 * 1024;
+        try {
+            long saves = Counters.get("durable_task_state_saves_total").get();
+            long deferred = Counters.get("durable_task_state_saves_deferred_total").get();
+            WorkflowJob p = j.jenkins.createProject(WorkflowJob.class, "p");
+            p.setDefinition(new CpsFlowDefinition("node {sh 'for i in 1 2 3 4 5 6 7 8 9 10; do echo line $i; sleep 0.5; done'}", true));
+            WorkflowRun b = j.assertBuildStatusSuccess(p.scheduleBuild2(0));
+            j.assertLogContains("line 1", b);
+            j.assertLogContains("line 10", b);
+            long deferredSince = Counters.get("durable_task_state_saves_deferred_total").get() - deferred;
+            assertTrue("several polls copied output, deferring saves: " + deferredSince, deferredSince > 1);
+            assertEquals("one save, upon exit", 1, Counters.get("durable_task_state_saves_total").get() - saves);
+        } finally {
+            DurableTaskStep.SAVE_STATE_BYTES = 0;
+        }
+    }
+
+    @Test public void quickCompletion() throws Exception {
+        Assume.assumeFalse("TODO Windows equivalent TBD", Functions.isWindows());
+        DurableTaskStep.QUICK_COMPLETION_TIMEOUT = 1000;
+        try {
+            WorkflowJob p = j.jenkins.createProject(WorkflowJob.class, "p");
+            p.setDefinition(new CpsFlowDefinition("node {sh 'echo quick'; sh 'sleep 2; echo slow'; echo \"got ${sh script: 'echo out', returnStdout: true}\"; sh 'exit 3'}", true));
+            WorkflowRun b = j.assertBuildStatus(Result.FAILURE, p.scheduleBuild2(0));
+            j.assertLogContains("quick", b);
+            j.assertLogContains("slow", b);
+            j.assertLogContains("got out", b);
+            j.assertLogContains("script returned exit code 3", b);
+        } finally {
+            DurableTaskStep.QUICK_COMPLETION_TIMEOUT = 0;
+        }
+    }
+
     /**
      * Asserts that the predicate remains true up to the given timeout.
      */
@@ -0,0 +1,84 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.support;
+
+import hudson.FilePath;
+import hudson.model.Computer;
+import hudson.slaves.DumbSlave;
+import hudson.slaves.NodeProperty;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import org.jenkinsci.plugins.workflow.pickles.Pickle;
+import org.jenkinsci.plugins.workflow.support.pickles.ComputerPickle;
+import org.jenkinsci.plugins.workflow.support.pickles.FilePathPickle;
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class ComputerIndexTest {
+
+    @Rule public JenkinsRule j = new JenkinsRule();
+
+    @Test public void addRenameRemove() throws Exception {
+        assertNull(ComputerIndex.getComputer("one"));
+        DumbSlave one = j.createOnlineSlave();
+        String name = one.getNodeName();
+        Computer c = ComputerIndex.getComputer(name);
+        assertSame(one.toComputer(), c);
+        FilePath f = ComputerIndex.find(name, "/some/path");
+        assertNotNull(f);
+        assertSame(c.getChannel(), f.getChannel());
+        assertEquals("/some/path", f.getRemote());
+        // The master is the empty name, and always local:
+        assertSame(FilePath.localChannel, ComputerIndex.find("", "/x").getChannel());
+        // Renaming means replacing the node, so the old name must stop resolving even though its computer was indexed:
+        DumbSlave renamed = new DumbSlave(name + "-renamed", one.getNodeDescription(), one.getRemoteFS(), "1", one.getMode(), one.getLabelString(), one.getLauncher(), one.getRetentionStrategy(), Collections.<NodeProperty<?>>emptyList());
+        j.jenkins.removeNode(one);
+        j.jenkins.addNode(renamed);
+        j.waitOnline(renamed);
+        assertNull(ComputerIndex.getComputer(name));
+        assertNull(ComputerIndex.find(name, "/some/path"));
+        assertSame(renamed.toComputer(), ComputerIndex.getComputer(name + "-renamed"));
+        j.jenkins.removeNode(renamed);
+        assertNull(ComputerIndex.getComputer(name + "-renamed"));
+        assertNull(ComputerIndex.find(name + "-renamed", "/some/path"));
+    }
+
+    @Test public void picklesResolveThroughIndex() throws Exception {
+        DumbSlave s = j.createOnlineSlave();
+        Computer c = s.toComputer();
+        Pickle computerPickle = new ComputerPickle.Factory().writeReplace(c);
+        assertNotNull(computerPickle);
+        assertSame(c, computerPickle.rehydrate(null).get(1, TimeUnit.MINUTES));
+        FilePath ws = s.getWorkspaceRoot();
+        Pickle filePathPickle = new FilePathPickle.Factory().writeReplace(ws);
+        assertNotNull(filePathPickle);
+        FilePath rehydrated = (FilePath) filePathPickle.rehydrate(null).get(1, TimeUnit.MINUTES);
+        assertEquals(ws.getRemote(), rehydrated.getRemote());
+        assertSame(c.getChannel(), rehydrated.getChannel());
+    }
+
+}
@@ -0,0 +1,78 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.support.pickles;
+
+import hudson.model.Computer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import jenkins.model.Jenkins;
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class WakeableTryRepeatedlyTest {
+
+    @Rule public JenkinsRule j = new JenkinsRule();
+
+    /** Waits for a node which does not exist yet. */
+    private static final class WaitForNode extends WakeableTryRepeatedly<Computer> {
+        final AtomicInteger attempts = new AtomicInteger();
+        WaitForNode() {
+            super("waited", 0);
+        }
+        @Override protected Computer tryResolve() throws Exception {
+            attempts.incrementAndGet();
+            Jenkins jenkins = Jenkins.getInstance();
+            Computer c = jenkins != null ? jenkins.getComputer("waited") : null;
+            return c != null && c.isOnline() ? c : null;
+        }
+    }
+
+    @SuppressWarnings("SleepWhileInLoop")
+    @Test public void wokenByNode() throws Exception {
+        WaitForNode waiter = new WaitForNode();
+        assertTrue(WakeableTryRepeatedly.isWaiting("waited"));
+        // Attempts at roughly 0, 1, 3, 7 and 15 seconds, after which the next is due at 31:
+        while (waiter.attempts.get() < 5) {
+            Thread.sleep(100);
+        }
+        long start = System.nanoTime();
+        j.createSlave("waited", null, null);
+        Computer c = waiter.get(30, TimeUnit.SECONDS);
+        assertEquals("waited", c.getName());
+        long elapsed = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start);
+        assertTrue("took " + elapsed + "s, as if only retrying on schedule", elapsed < 12);
+        assertFalse("no longer registered once done", WakeableTryRepeatedly.isWaiting("waited"));
+    }
+
+    @Test public void forgetKeyOnCancel() throws Exception {
+        WaitForNode waiter = new WaitForNode();
+        assertTrue(WakeableTryRepeatedly.isWaiting("waited"));
+        waiter.cancel(false);
+        assertFalse(WakeableTryRepeatedly.isWaiting("waited"));
+    }
+
+}
@@ -58,9 +58,11 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Handler;
 import java.util.logging.Level;
+import java.util.logging.LogRecord;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
 import jenkins.model.Jenkins;
@@ -77,6 +79,8 @@ import org.jenkinsci.plugins.workflow.job.WorkflowJob;
 import org.jenkinsci.plugins.workflow.job.WorkflowRun;
 import org.jenkinsci.plugins.workflow.steps.durable_task.DurableTaskStep;
 import org.jenkinsci.plugins.workflow.steps.durable_task.Messages;
+import org.jenkinsci.plugins.workflow.support.Counters;
+import org.jenkinsci.plugins.workflow.support.pickles.ExecutorPickle;
 import org.jenkinsci.plugins.workflow.support.pickles.serialization.RiverReader;
 import org.jenkinsci.plugins.workflow.test.steps.SemaphoreStep;
 import org.junit.AfterClass;
@@ -242,6 +246,80 @@ public class ExecutorStepTest {
         });
     }
 
+    @Test public void spreadChecksAcrossRestart() throws Exception {
+        Assume.assumeFalse("TODO not sure how to write a corresponding batch script", Functions.isWindows());
+        story.addStep(new Statement() {
+            @SuppressWarnings("SleepWhileInLoop")
+            @Override public void evaluate() throws Throwable {
+                story.j.jenkins.setNumExecutors(2);
+                DumbSlave s = new DumbSlave("dumbo", "dummy", tmp.getRoot().getAbsolutePath(), "1", Node.Mode.NORMAL, "", new JNLPLauncher(), RetentionStrategy.NOOP, Collections.<NodeProperty<?>>emptyList());
+                story.j.jenkins.addNode(s);
+                startJnlpProc();
+                WorkflowJob p = story.j.jenkins.createProject(WorkflowJob.class, "demo");
+                File f1 = new File(story.j.jenkins.getRootDir(), "f1");
+                new FileOutputStream(f1).close();
+                p.setDefinition(new CpsFlowDefinition(
+                    "def wait(label, id) {node(label) {sh \"touch '" + story.j.jenkins.getRootDir() + "/started-${id}'; while [ -f '" + f1 + "' ]; do sleep 1; done; echo finished ${id}\"}}\n" +
+                    "parallel a: {wait('master', 'a')}, b: {wait('master', 'b')}, c: {wait('dumbo', 'c')}", true));
+                WorkflowRun b = p.scheduleBuild2(0).waitForStart();
+                for (String id : new String[] {"a", "b", "c"}) {
+                    File started = new File(story.j.jenkins.getRootDir(), "started-" + id);
+                    while (!started.isFile()) {
+                        Thread.sleep(100);
+                    }
+                }
+                killJnlpProc();
+                // Static, so still in effect as the steps resume after the restart:
+                DurableTaskStep.RESUME_WINDOW = 3;
+            }
+        });
+        story.addStep(new Statement() {
+            @SuppressWarnings("SleepWhileInLoop")
+            @Override public void evaluate() throws Throwable {
+                // Which nodes have had tasks checked, from the message logged as each check starts:
+                final List<String> checked = Collections.synchronizedList(new ArrayList<String>());
+                Logger logger = Logger.getLogger(DurableTaskStep.class.getName());
+                Handler handler = new Handler() {
+                    @Override public void publish(LogRecord record) {
+                        if ("checking {0} on {1}".equals(record.getMessage())) {
+                            checked.add((String) record.getParameters()[1]);
+                        }
+                    }
+                    @Override public void flush() {}
+                    @Override public void close() {}
+                };
+                Level level = logger.getLevel();
+                logger.setLevel(Level.FINER);
+                logger.addHandler(handler);
+                try {
+                    WorkflowJob p = (WorkflowJob) story.j.jenkins.getItem("demo");
+                    WorkflowRun b = p.getLastBuild();
+                    assertTrue(b.isBuilding());
+                    // By the end of the window both master tasks have been checked, but not the task on the agent, which is not yet back:
+                    Thread.sleep(TimeUnit.SECONDS.toMillis(DurableTaskStep.RESUME_WINDOW) + 2000);
+                    synchronized (checked) {
+                        assertEquals(checked.toString(), 0, Collections.frequency(checked, "dumbo"));
+                        assertTrue(checked.toString(), checked.contains(""));
+                    }
+                    startJnlpProc();
+                    while (!checked.contains("dumbo")) {
+                        Thread.sleep(100);
+                    }
+                    assertTrue(new File(story.j.jenkins.getRootDir(), "f1").delete());
+                    story.j.assertBuildStatusSuccess(story.j.waitForCompletion(b));
+                    story.j.assertLogContains("finished a", b);
+                    story.j.assertLogContains("finished b", b);
+                    story.j.assertLogContains("finished c", b);
+                } finally {
+                    logger.removeHandler(handler);
+                    logger.setLevel(level);
+                    DurableTaskStep.RESUME_WINDOW = 0;
+                    killJnlpProc();
+                }
+            }
+        });
+    }
+
     @Test public void buildShellScriptAcrossDisconnect() throws Exception {
         Assume.assumeFalse("TODO not sure how to write a corresponding batch script", Functions.isWindows());
         story.addStep(new Statement() {
@@ -292,6 +370,118 @@ public class ExecutorStepTest {
         });
     }
 
+    @Test public void noChecksWhileDisconnected() throws Exception {
+        noChecksWhileDisconnected(false);
+    }
+
+    @Test public void noBatchedChecksWhileDisconnected() throws Exception {
+        noChecksWhileDisconnected(true);
+    }
+
+    private void noChecksWhileDisconnected(final boolean batching) throws Exception {
+        Assume.assumeFalse("TODO not sure how to write a corresponding batch script", Functions.isWindows());
+        story.addStep(new Statement() {
+            @SuppressWarnings("SleepWhileInLoop")
+            @Override public void evaluate() throws Throwable {
+                DurableTaskStep.USE_BATCHING = batching;
+                try {
+                    DumbSlave s = new DumbSlave("dumbo", "dummy", tmp.getRoot().getAbsolutePath(), "1", Node.Mode.NORMAL, "", new JNLPLauncher(), RetentionStrategy.NOOP, Collections.<NodeProperty<?>>emptyList());
+                    story.j.jenkins.addNode(s);
+                    startJnlpProc();
+                    WorkflowJob p = story.j.jenkins.createProject(WorkflowJob.class, "demo");
+                    File f1 = new File(story.j.jenkins.getRootDir(), "f1");
+                    File f2 = new File(story.j.jenkins.getRootDir(), "f2");
+                    new FileOutputStream(f1).close();
+                    p.setDefinition(new CpsFlowDefinition(
+                        "node('dumbo') {\n" +
+                        "    sh 'touch \"" + f2 + "\"; while [ -f \"" + f1 + "\" ]; do sleep 1; done; echo finished waiting'\n" +
+                        "}", true));
+                    WorkflowRun b = p.scheduleBuild2(0).waitForStart();
+                    while (!f2.isFile()) {
+                        Thread.sleep(100);
+                    }
+                    Computer c = s.toComputer();
+                    assertNotNull(c);
+                    AtomicLong checks = Counters.get(batching ? "durable_task_check_batches_total" : "durable_task_checks_total");
+                    AtomicLong pauses = Counters.get("durable_task_check_pauses_total");
+                    long pausesBefore = pauses.get();
+                    killJnlpProc();
+                    while (c.isOnline()) {
+                        Thread.sleep(100);
+                    }
+                    // The next check finds the agent gone and pauses; none should follow until it is back.
+                    while (pauses.get() == pausesBefore) {
+                        Thread.sleep(100);
+                    }
+                    long checksWhileOffline = checks.get();
+                    Thread.sleep(5000);
+                    assertEquals("checks made while offline", checksWhileOffline, checks.get());
+                    assertTrue(b.isBuilding());
+                    startJnlpProc();
+                    while (c.isOffline()) {
+                        Thread.sleep(100);
+                    }
+                    assertTrue(f1.delete());
+                    story.j.assertBuildStatusSuccess(story.j.waitForCompletion(b));
+                    story.j.assertLogContains("finished waiting", b);
+                    assertTrue("checks resumed", checks.get() > checksWhileOffline);
+                } finally {
+                    DurableTaskStep.USE_BATCHING = false;
+                    killJnlpProc();
+                }
+            }
+        });
+    }
+
+    @Test public void watchedShellScriptAcrossDisconnect() throws Exception {
+        Assume.assumeFalse("TODO not sure how to write a corresponding batch script", Functions.isWindows());
+        story.addStep(new Statement() {
+            @SuppressWarnings("SleepWhileInLoop")
+            @Override public void evaluate() throws Throwable {
+                DurableTaskStep.USE_WATCHING = true;
+                try {
+                    DumbSlave s = new DumbSlave("dumbo", "dummy", tmp.getRoot().getAbsolutePath(), "1", Node.Mode.NORMAL, "", new JNLPLauncher(), RetentionStrategy.NOOP, Collections.<NodeProperty<?>>emptyList());
+                    story.j.jenkins.addNode(s);
+                    startJnlpProc();
+                    WorkflowJob p = story.j.jenkins.createProject(WorkflowJob.class, "demo");
+                    File f1 = new File(story.j.jenkins.getRootDir(), "f1");
+                    File f2 = new File(story.j.jenkins.getRootDir(), "f2");
+                    new FileOutputStream(f1).close();
+                    p.setDefinition(new CpsFlowDefinition(
+                        "node('dumbo') {\n" +
+                        "    sh 'echo started; touch \"" + f2 + "\"; while [ -f \"" + f1 + "\" ]; do sleep 1; done; echo finished waiting; rm \"" + f2 + "\"'\n" +
+                        "    echo 'OK, done'\n" +
+                        "}", true));
+                    WorkflowRun b = p.scheduleBuild2(0).waitForStart();
+                    while (!f2.isFile()) {
+                        Thread.sleep(100);
+                    }
+                    story.j.waitForMessage("started", b);
+                    Computer c = s.toComputer();
+                    assertNotNull(c);
+                    // A short outage: the watcher dies with the old channel, and the step must notice when the agent comes back.
+                    killJnlpProc();
+                    while (c.isOnline()) {
+                        Thread.sleep(100);
+                    }
+                    startJnlpProc();
+                    while (c.isOffline()) {
+                        Thread.sleep(100);
+                    }
+                    assertTrue(b.isBuilding());
+                    assertTrue(f1.delete());
+                    story.j.assertBuildStatusSuccess(story.j.waitForCompletion(b));
+                    story.j.assertLogContains("finished waiting", b);
+                    story.j.assertLogContains("OK, done", b);
+                    assertFalse(f2.isFile());
+                } finally {
+                    DurableTaskStep.USE_WATCHING = false;
+                    killJnlpProc();
+                }
+            }
+        });
+    }
+
     @Test public void buildShellScriptQuick() throws Exception {
         story.addStep(new Statement() {
             @Override public void evaluate() throws Throwable {
@@ -368,6 +558,150 @@ public class ExecutorStepTest {
         });
     }
 
+    @Test public void seedWorkspaces() {
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                File workspaces = new File(story.j.jenkins.getRootDir(), "workspace");
+                Assume.assumeTrue("file system does not support reflinks", reflinksSupported(workspaces));
+                ExecutorStepExecution.SEED_WORKSPACES = true;
+                try {
+                    story.j.jenkins.setNumExecutors(3);
+                    WorkflowJob p = story.j.jenkins.createProject(WorkflowJob.class, "demo");
+                    p.setDefinition(new CpsFlowDefinition("node {echo \"seeded? ${fileExists 'marker'}\"; writeFile file: 'marker', text: 'here'; semaphore 'hold'}", true));
+                    p.setConcurrentBuild(true);
+                    // Populate demo, demo@2 and demo@3:
+                    for (int i = 1; i <= 3; i++) {
+                        SemaphoreStep.waitForStart("hold/" + i, p.scheduleBuild2(0).waitForStart());
+                    }
+                    for (int i = 1; i <= 3; i++) {
+                        SemaphoreStep.success("hold/" + i, null);
+                        story.j.assertBuildStatusSuccess(story.j.waitForCompletion(p.getBuildByNumber(i)));
+                    }
+                    FilePath base = story.j.jenkins.getWorkspaceFor(p);
+                    FilePath parent = base.getParent();
+                    parent.child(base.getName() + "@2").deleteRecursive();
+                    // With demo busy, build #5 gets a fresh demo@2, which may be seeded only from the idle demo@3:
+                    WorkflowRun b4 = p.scheduleBuild2(0).waitForStart();
+                    SemaphoreStep.waitForStart("hold/4", b4);
+                    WorkflowRun b5 = p.scheduleBuild2(0).waitForStart();
+                    SemaphoreStep.waitForStart("hold/5", b5);
+                    assertFalse("busy sibling must not be probed by allocating another variant", parent.child(base.getName() + "@4").exists());
+                    story.j.assertLogContains("Seeded ", b5);
+                    story.j.assertLogContains("seeded? true", b5);
+                    SemaphoreStep.success("hold/4", null);
+                    SemaphoreStep.success("hold/5", null);
+                    story.j.assertBuildStatusSuccess(story.j.waitForCompletion(b4));
+                    story.j.assertBuildStatusSuccess(story.j.waitForCompletion(b5));
+                } finally {
+                    ExecutorStepExecution.SEED_WORKSPACES = false;
+                }
+            }
+        });
+    }
+
+    @Test public void seedWorkspacesWithoutIdleSibling() {
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                ExecutorStepExecution.SEED_WORKSPACES = true;
+                try {
+                    story.j.jenkins.setNumExecutors(2);
+                    WorkflowJob p = story.j.jenkins.createProject(WorkflowJob.class, "demo");
+                    p.setDefinition(new CpsFlowDefinition("node {echo \"seeded? ${fileExists 'marker'}\"; writeFile file: 'marker', text: 'here'; semaphore 'hold'}", true));
+                    p.setConcurrentBuild(true);
+                    WorkflowRun b1 = p.scheduleBuild2(0).waitForStart();
+                    SemaphoreStep.waitForStart("hold/1", b1);
+                    // demo@2 is new, but its only sibling is busy, so it is left empty whatever the file system:
+                    WorkflowRun b2 = p.scheduleBuild2(0).waitForStart();
+                    SemaphoreStep.waitForStart("hold/2", b2);
+                    story.j.assertLogNotContains("Seeded ", b2);
+                    story.j.assertLogContains("seeded? false", b2);
+                    SemaphoreStep.success("hold/1", null);
+                    SemaphoreStep.success("hold/2", null);
+                    story.j.assertBuildStatusSuccess(story.j.waitForCompletion(b1));
+                    story.j.assertBuildStatusSuccess(story.j.waitForCompletion(b2));
+                } finally {
+                    ExecutorStepExecution.SEED_WORKSPACES = false;
+                }
+            }
+        });
+    }
+
+    /** Whether {@code cp --reflink=always} works within the given directory, as {@link WorkspaceSeeder} requires. */
+    private static boolean reflinksSupported(File dir) throws Exception {
+        if (Functions.isWindows() || !dir.isDirectory() && !dir.mkdirs()) {
+            return false;
+        }
+        File source = new File(dir, "reflink-probe");
+        File copy = new File(dir, "reflink-probe-copy");
+        FileUtils.writeStringToFile(source, "probe");
+        try {
+            return new ProcessBuilder("cp", "--reflink=always", source.getAbsolutePath(), copy.getAbsolutePath()).redirectErrorStream(true).start().waitFor() == 0;
+        } finally {
+            source.delete();
+            copy.delete();
+        }
+    }
+
+    @Test public void workspaceAffinity() {
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                ExecutorStepExecution.AFFINITY_WAIT = 60;
+                try {
+                    story.j.createSlave("a", "remote", null);
+                    story.j.createSlave("b", "remote", null);
+                    WorkflowJob p = story.j.jenkins.createProject(WorkflowJob.class, "demo");
+                    p.setDefinition(new CpsFlowDefinition("node('remote') {echo \"ran on ${env.NODE_NAME}\"}", true));
+                    WorkflowRun b1 = story.j.assertBuildStatusSuccess(p.scheduleBuild2(0));
+                    String preferred = JenkinsRule.getLog(b1).contains("ran on a") ? "a" : "b";
+                    // Keep the preferred node busy; the next build should wait for it rather than take the other one:
+                    WorkflowJob blocker = story.j.jenkins.createProject(WorkflowJob.class, "blocker");
+                    blocker.setDefinition(new CpsFlowDefinition("node('" + preferred + "') {semaphore 'block'}", true));
+                    WorkflowRun bb = blocker.scheduleBuild2(0).waitForStart();
+                    SemaphoreStep.waitForStart("block/1", bb);
+                    WorkflowRun b2 = p.scheduleBuild2(0).waitForStart();
+                    story.j.waitForMessage(Messages.ExecutorStepExecution_waiting_for_workspace_affinity(60, preferred), b2);
+                    SemaphoreStep.success("block/1", null);
+                    story.j.assertBuildStatusSuccess(story.j.waitForCompletion(bb));
+                    story.j.assertLogContains("ran on " + preferred, story.j.assertBuildStatusSuccess(story.j.waitForCompletion(b2)));
+                } finally {
+                    ExecutorStepExecution.AFFINITY_WAIT = 0;
+                }
+            }
+        });
+    }
+
+    @Test public void stickyExecutors() {
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                ExecutorStepExecution.STICKY_EXECUTOR_GRACE = 60000;
+                try {
+                    DumbSlave s = story.j.createSlave("remote", null, null);
+                    WorkflowJob p = story.j.jenkins.createProject(WorkflowJob.class, "demo");
+                    p.setDefinition(new CpsFlowDefinition("node('remote') {echo \"first in ${pwd()}\"}; semaphore 'between'; node('remote') {echo \"second in ${pwd()}\"}", true));
+                    WorkflowRun b = p.scheduleBuild2(0).waitForStart();
+                    SemaphoreStep.waitForStart("between/1", b);
+                    // The only executor of the agent is kept for the second block, so another build has to wait:
+                    WorkflowJob other = story.j.jenkins.createProject(WorkflowJob.class, "other");
+                    other.setDefinition(new CpsFlowDefinition("node('remote') {echo 'other ran'}", true));
+                    WorkflowRun ob = other.scheduleBuild2(0).waitForStart();
+                    story.j.waitForMessage(Messages.ExecutorStepExecution_executor_kept(s.getNodeName()), ob);
+                    SemaphoreStep.success("between/1", null);
+                    story.j.assertBuildStatusSuccess(story.j.waitForCompletion(b));
+                    String workspace = s.getWorkspaceFor(p).getRemote();
+                    story.j.assertLogContains("first in " + workspace, b);
+                    story.j.assertLogContains("second in " + workspace, b);
+                    // Once the build is over, nothing is kept any more:
+                    story.j.assertLogContains("other ran", story.j.assertBuildStatusSuccess(story.j.waitForCompletion(ob)));
+                    story.j.waitUntilNoActivity();
+                    Computer c = s.toComputer();
+                    assertEquals(c.countExecutors(), c.countIdle());
+                } finally {
+                    ExecutorStepExecution.STICKY_EXECUTOR_GRACE = 0;
+                }
+            }
+        });
+    }
+
     @Issue("JENKINS-26513")
     @Test public void executorStepRestart() {
         story.addStep(new Statement() {
@@ -388,6 +722,109 @@ public class ExecutorStepTest {
         });
     }
 
+    @Test public void severalBlocksAcrossRestart() {
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                story.j.jenkins.setNumExecutors(3);
+                WorkflowJob p = story.j.jenkins.createProject(WorkflowJob.class, "demo");
+                p.setDefinition(new CpsFlowDefinition("parallel a: {node {semaphore 'a'}}, b: {node {semaphore 'b'}}, c: {node {semaphore 'c'}}, queued: {node('special') {echo 'OK ran'}}", true));
+                WorkflowRun b = p.scheduleBuild2(0).waitForStart();
+                SemaphoreStep.waitForStart("a/1", b);
+                SemaphoreStep.waitForStart("b/1", b);
+                SemaphoreStep.waitForStart("c/1", b);
+                story.j.waitForMessage("Still waiting to schedule task", b);
+            }
+        });
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                WorkflowJob p = (WorkflowJob) story.j.jenkins.getItem("demo");
+                WorkflowRun b = p.getLastBuild();
+                assertTrue(b.isBuilding());
+                SemaphoreStep.success("a/1", null);
+                SemaphoreStep.success("b/1", null);
+                SemaphoreStep.success("c/1", null);
+                story.j.createSlave("special", null);
+                story.j.assertLogContains("OK ran", story.j.assertBuildStatusSuccess(story.j.waitForCompletion(b)));
+                story.j.waitUntilNoActivity();
+                assertEquals(Collections.emptyList(), Arrays.asList(Queue.getInstance().getItems()));
+                Computer master = story.j.jenkins.toComputer();
+                assertEquals(master.countExecutors(), master.countIdle());
+            }
+        });
+    }
+
+    @Test public void throttledRehydration() {
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                story.j.jenkins.setNumExecutors(3);
+                WorkflowJob p = story.j.jenkins.createProject(WorkflowJob.class, "demo");
+                p.setDefinition(new CpsFlowDefinition("node {semaphore 'wait'}", true));
+                p.setConcurrentBuild(true);
+                for (int i = 1; i <= 3; i++) {
+                    SemaphoreStep.waitForStart("wait/" + i, p.scheduleBuild2(0).waitForStart());
+                }
+                // Static, so still in effect as the executors are rehydrated after the restart:
+                ExecutorPickle.MAX_IN_FLIGHT = 1;
+            }
+        });
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                try {
+                    WorkflowJob p = (WorkflowJob) story.j.jenkins.getItem("demo");
+                    for (int i = 1; i <= 3; i++) {
+                        SemaphoreStep.success("wait/" + i, null);
+                    }
+                    for (int i = 1; i <= 3; i++) {
+                        story.j.assertBuildStatusSuccess(story.j.waitForCompletion(p.getBuildByNumber(i)));
+                    }
+                    story.j.waitUntilNoActivity();
+                    assertEquals(Collections.emptyList(), Arrays.asList(Queue.getInstance().getItems()));
+                } finally {
+                    ExecutorPickle.MAX_IN_FLIGHT = 0;
+                }
+            }
+        });
+    }
+
+    @Test public void throttledRehydrationSkipsOfflineNode() {
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                DumbSlave s = new DumbSlave("dumbo", "dummy", tmp.getRoot().getAbsolutePath(), "1", Node.Mode.NORMAL, "", new JNLPLauncher(), RetentionStrategy.NOOP, Collections.<NodeProperty<?>>emptyList());
+                story.j.jenkins.addNode(s);
+                startJnlpProc();
+                WorkflowJob remote = story.j.jenkins.createProject(WorkflowJob.class, "remote");
+                // A previous build gives an estimate, so this one is admitted first after the restart:
+                remote.setDefinition(new CpsFlowDefinition("node('dumbo') {echo 'quick'}", true));
+                story.j.assertBuildStatusSuccess(remote.scheduleBuild2(0));
+                remote.setDefinition(new CpsFlowDefinition("node('dumbo') {semaphore 'remote'}", true));
+                SemaphoreStep.waitForStart("remote/1", remote.scheduleBuild2(0).waitForStart());
+                WorkflowJob local = story.j.jenkins.createProject(WorkflowJob.class, "local");
+                local.setDefinition(new CpsFlowDefinition("node('master') {semaphore 'local'}", true));
+                SemaphoreStep.waitForStart("local/1", local.scheduleBuild2(0).waitForStart());
+                killJnlpProc();
+                // Static, so still in effect as the executors are rehydrated after the restart:
+                ExecutorPickle.MAX_IN_FLIGHT = 1;
+            }
+        });
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                try {
+                    // The agent stays away, so its task would otherwise hold the only slot forever:
+                    SemaphoreStep.success("local/1", null);
+                    WorkflowJob local = (WorkflowJob) story.j.jenkins.getItem("local");
+                    story.j.assertBuildStatusSuccess(story.j.waitForCompletion(local.getBuildByNumber(1)));
+                    startJnlpProc();
+                    SemaphoreStep.success("remote/1", null);
+                    WorkflowJob remote = (WorkflowJob) story.j.jenkins.getItem("remote");
+                    story.j.assertBuildStatusSuccess(story.j.waitForCompletion(remote.getBuildByNumber(2)));
+                } finally {
+                    ExecutorPickle.MAX_IN_FLIGHT = 0;
+                    killJnlpProc();
+                }
+            }
+        });
+    }
+
     @Issue("JENKINS-26130")
     @Test public void unloadableExecutorPickle() {
         story.addStep(new Statement() {
@@ -464,6 +901,26 @@ public class ExecutorStepTest {
         });
     }
 
+    @Test public void stopQueuedAndRunningBlocks() {
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                WorkflowJob p = story.j.jenkins.createProject(WorkflowJob.class, "demo");
+                p.setDefinition(new CpsFlowDefinition("parallel queued: {node('nonexistent') {}}, running: {node {semaphore 'wait'}}", true));
+                WorkflowRun b = p.scheduleBuild2(0).waitForStart();
+                SemaphoreStep.waitForStart("wait/1", b);
+                story.j.waitForMessage("Still waiting to schedule task", b);
+                assertEquals(1, Queue.getInstance().getItems().length);
+                Computer master = story.j.jenkins.toComputer();
+                assertEquals(master.countExecutors() - 1, master.countIdle());
+                b.getExecutor().interrupt();
+                story.j.assertBuildStatus(Result.ABORTED, story.j.waitForCompletion(b));
+                story.j.waitUntilNoActivity();
+                assertEquals(Collections.emptyList(), Arrays.asList(Queue.getInstance().getItems()));
+                assertEquals(master.countExecutors(), master.countIdle());
+            }
+        });
+    }
+
     @Issue("JENKINS-30759")
     @Test public void quickNodeBlock() {
         story.addStep(new Statement() {
@@ -475,6 +932,187 @@ public class ExecutorStepTest {
         });
     }
 
+    @Test public void parallelQuickNodeBlocks() {
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                story.j.jenkins.setNumExecutors(5);
+                WorkflowJob p = story.j.jenkins.createProject(WorkflowJob.class, "demo");
+                p.setDefinition(new CpsFlowDefinition("def branches = [:]; for (int i = 0; i < 20; i++) {def b = i; branches[\"b${b}\"] = {for (int j = 0; j < 5; j++) {node {echo \"ran ${b}/${j}\"}}}}; parallel branches", true));
+                WorkflowRun b = story.j.assertBuildStatusSuccess(p.scheduleBuild2(0));
+                story.j.assertLogContains("ran 0/4", b);
+                story.j.assertLogContains("ran 19/4", b);
+                story.j.waitUntilNoActivity();
+                Computer master = story.j.jenkins.toComputer();
+                assertEquals(master.countExecutors(), master.countIdle());
+            }
+        });
+    }
+
+    @Test public void killLeftoversInBatches() {
+        Assume.assumeTrue("TODO relies on /proc", new File("/proc/self").isDirectory());
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                ExecutorStepExecution.KILL_BATCH_WINDOW = 500;
+                try {
+                    story.j.jenkins.setNumExecutors(3);
+                    File pids = new File(story.j.jenkins.getRootDir(), "pids");
+                    WorkflowJob p = story.j.jenkins.createProject(WorkflowJob.class, "demo");
+                    p.setDefinition(new CpsFlowDefinition("def leave() {node {sh 'sleep 1000 & echo $! >> \"" + pids + "\"'}}; parallel a: {leave()}, b: {leave()}, c: {leave()}", true));
+                    story.j.assertBuildStatusSuccess(p.scheduleBuild2(0));
+                    List<String> leftovers = FileUtils.readLines(pids);
+                    assertEquals(3, leftovers.size());
+                    for (String pid : leftovers) {
+                        File proc = new File("/proc/" + pid.trim());
+                        while (proc.isDirectory()) {
+                            Thread.sleep(100);
+                        }
+                    }
+                } finally {
+                    ExecutorStepExecution.KILL_BATCH_WINDOW = 0;
+                }
+            }
+        });
+    }
+
+    @Test public void killOnlyProcessesOfTheBlock() {
+        killOnlyProcessesOfTheBlock(500, false);
+    }
+
+    @Test public void killByStartTime() {
+        killOnlyProcessesOfTheBlock(0, true);
+    }
+
+    private void killOnlyProcessesOfTheBlock(final long batchWindow, final boolean byStartTime) {
+        Assume.assumeTrue("TODO relies on /proc", new File("/proc/self").isDirectory());
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                ExecutorStepExecution.KILL_BATCH_WINDOW = batchWindow;
+                ExecutorStepExecution.KILL_BY_START_TIME = byStartTime;
+                // Started before the block, so skipped unread when killing by start time:
+                Process bystander = new ProcessBuilder("sleep", "1000").start();
+                try {
+                    File pids = new File(story.j.jenkins.getRootDir(), "pids");
+                    WorkflowJob p = story.j.jenkins.createProject(WorkflowJob.class, "demo");
+                    p.setDefinition(new CpsFlowDefinition("node {sh 'sleep 1000 & echo $! > \"" + pids + "\"'}", true));
+                    story.j.assertBuildStatusSuccess(p.scheduleBuild2(0));
+                    File proc = new File("/proc/" + FileUtils.readFileToString(pids).trim());
+                    while (proc.isDirectory()) {
+                        Thread.sleep(100);
+                    }
+                    try {
+                        bystander.exitValue();
+                        fail("killed a process not started by the node block");
+                    } catch (IllegalThreadStateException x) {
+                        // still running, as expected
+                    }
+                } finally {
+                    bystander.destroy();
+                    ExecutorStepExecution.KILL_BATCH_WINDOW = 0;
+                    ExecutorStepExecution.KILL_BY_START_TIME = false;
+                }
+            }
+        });
+    }
+
+    @Test public void asyncSetup() {
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                ExecutorStepExecution.ASYNC_SETUP = true;
+                try {
+                    DumbSlave s = story.j.createOnlineSlave();
+                    s.getNodeProperties().add(new EnvironmentVariablesNodeProperty(new EnvironmentVariablesNodeProperty.Entry("ONSLAVE", "true")));
+                    WorkflowJob p = story.j.jenkins.createProject(WorkflowJob.class, "demo");
+                    p.setDefinition(new CpsFlowDefinition(
+                        "def block(id) {node('" + s.getNodeName() + "') {echo \"${id} in ${pwd()}\"; isUnix() ? sh('echo ONSLAVE=$ONSLAVE') : bat('echo ONSLAVE=%ONSLAVE%')}}\n" +
+                        "parallel a: {block('a')}, b: {block('b')}\n" +
+                        "block('c')", true));
+                    WorkflowRun b = story.j.assertBuildStatusSuccess(p.scheduleBuild2(0));
+                    story.j.assertLogContains("ONSLAVE=true", b);
+                    story.j.assertLogContains("c in " + s.getWorkspaceFor(p).getRemote(), b);
+                    story.j.waitUntilNoActivity();
+                    Computer c = s.toComputer();
+                    assertEquals(c.countExecutors(), c.countIdle());
+                } finally {
+                    ExecutorStepExecution.ASYNC_SETUP = false;
+                }
+            }
+        });
+    }
+
+    @Test public void cachedEnvironment() {
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                ExecutorStepExecution.CACHE_ENVIRONMENT = true;
+                try {
+                    DumbSlave s = story.j.createOnlineSlave();
+                    story.j.jenkins.getGlobalNodeProperties().add(new EnvironmentVariablesNodeProperty(new EnvironmentVariablesNodeProperty.Entry("GLOBAL", "one")));
+                    WorkflowJob p = story.j.jenkins.createProject(WorkflowJob.class, "demo");
+                    p.setDefinition(new CpsFlowDefinition("for (int i = 0; i < 2; i++) {node('" + s.getNodeName() + "') {echo \"GLOBAL=${env.GLOBAL} in ${env.BUILD_NUMBER}\"}}", true));
+                    WorkflowRun b = story.j.assertBuildStatusSuccess(p.scheduleBuild2(0));
+                    story.j.assertLogContains("GLOBAL=one in 1", b);
+                    story.j.assertLogNotContains("GLOBAL=null", b);
+                    // Saving the global configuration must invalidate what was cached:
+                    story.j.jenkins.getGlobalNodeProperties().replace(new EnvironmentVariablesNodeProperty(new EnvironmentVariablesNodeProperty.Entry("GLOBAL", "two")));
+                    b = story.j.assertBuildStatusSuccess(p.scheduleBuild2(0));
+                    story.j.assertLogContains("GLOBAL=two in 2", b);
+                    story.j.assertLogNotContains("GLOBAL=one", b);
+                } finally {
+                    ExecutorStepExecution.CACHE_ENVIRONMENT = false;
+                }
+            }
+        });
+    }
+
+    @Test public void batchedScheduling() {
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                ExecutorStepExecution.SCHEDULE_BATCH_WINDOW = 200;
+                try {
+                    story.j.jenkins.setNumExecutors(5);
+                    WorkflowJob p = story.j.jenkins.createProject(WorkflowJob.class, "demo");
+                    p.setDefinition(new CpsFlowDefinition("def branches = [:]; for (int i = 0; i < 10; i++) {def b = i; branches[\"b${b}\"] = {node {echo \"ran ${b}\"}}}; parallel branches", true));
+                    WorkflowRun b = story.j.assertBuildStatusSuccess(p.scheduleBuild2(0));
+                    story.j.assertLogContains("ran 0", b);
+                    story.j.assertLogContains("ran 9", b);
+                    // A block stopped before its batch is scheduled never reaches the queue:
+                    ExecutorStepExecution.SCHEDULE_BATCH_WINDOW = 60000;
+                    p.setDefinition(new CpsFlowDefinition("node {echo 'should not run'}", true));
+                    b = p.scheduleBuild2(0).waitForStart();
+                    story.j.waitForMessage("[Pipeline] node", b);
+                    b.getExecutor().interrupt();
+                    story.j.assertBuildStatus(Result.ABORTED, story.j.waitForCompletion(b));
+                    story.j.assertLogNotContains("should not run", b);
+                    assertEquals(Collections.emptyList(), Arrays.asList(Queue.getInstance().getItems()));
+                } finally {
+                    ExecutorStepExecution.SCHEDULE_BATCH_WINDOW = 0;
+                }
+            }
+        });
+    }
+
+    @Test public void nodeBlockMetrics() {
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                int maxLabels = NodeBlockMetrics.MAX_LABELS;
+                NodeBlockMetrics.MAX_LABELS = 2;
+                try {
+                    story.j.createSlave("remote", "a b c", null);
+                    WorkflowJob p = story.j.jenkins.createProject(WorkflowJob.class, "demo");
+                    p.setDefinition(new CpsFlowDefinition("node('a') {}; node('b') {}; node('c') {}", true));
+                    story.j.assertBuildStatusSuccess(p.scheduleBuild2(0));
+                    String metrics = story.j.createWebClient().goTo("nodeBlockMetrics/", "text/plain").getWebResponse().getContentAsString();
+                    assertThat(metrics, Matchers.containsString("node_block_phase_milliseconds_count{label=\"a\",phase=\"queue\"} 1"));
+                    assertThat(metrics, Matchers.containsString("node_block_phase_milliseconds_count{label=\"b\",phase=\"body\"} 1"));
+                    assertThat(metrics, Matchers.containsString("node_block_phase_milliseconds_count{label=\"(other)\",phase=\"queue\"} 1"));
+                    assertThat(metrics, Matchers.not(Matchers.containsString("label=\"c\"")));
+                    assertThat(metrics, Matchers.containsString("node_block_setup_count{stage=\"workspace\"} "));
+                } finally {
+                    NodeBlockMetrics.MAX_LABELS = maxLabels;
+                }
+            }
+        });
+    }
+
     @Issue("JENKINS-39134")
     @LocalData
     @Test public void serialForm() {
@@ -0,0 +1,173 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.support.steps;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import jenkins.model.queue.AsynchronousExecution;
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Races the lock-free state transitions of {@link ExecutorStepExecution.RunningTask} against one another.
+ */
+public class RunningTaskTest {
+
+    private static final int TASKS = 100000;
+    private static final int THREADS = 8;
+
+    private ExecutorService pool;
+
+    @Before public void pool() {
+        pool = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @After public void shutdown() throws Exception {
+        pool.shutdownNow();
+        assertTrue(pool.awaitTermination(1, TimeUnit.MINUTES));
+    }
+
+    /** Either the executable attaches and the finisher completes exactly that execution, or the finisher wins and the executable gives up. */
+    @Test public void finishRacingAttach() throws Exception {
+        final ExecutorStepExecution.RunningTask[] tasks = new ExecutorStepExecution.RunningTask[TASKS];
+        final AsynchronousExecution[] executions = new AsynchronousExecution[TASKS];
+        for (int i = 0; i < TASKS; i++) {
+            tasks[i] = new ExecutorStepExecution.RunningTask();
+            executions[i] = new Execution();
+        }
+        final boolean[] attached = new boolean[TASKS];
+        final AsynchronousExecution[] finished = new AsynchronousExecution[TASKS];
+        final CountDownLatch go = new CountDownLatch(1);
+        Future<?> attacher = pool.submit(new Callable<Void>() {
+            @Override public Void call() throws Exception {
+                go.await();
+                for (int i = 0; i < TASKS; i++) {
+                    attached[i] = tasks[i].attach(executions[i]);
+                }
+                return null;
+            }
+        });
+        Future<?> finisher = pool.submit(new Callable<Void>() {
+            @Override public Void call() throws Exception {
+                go.await();
+                for (int i = 0; i < TASKS; i++) {
+                    finished[i] = tasks[i].finish();
+                }
+                return null;
+            }
+        });
+        go.countDown();
+        attacher.get();
+        finisher.get();
+        for (int i = 0; i < TASKS; i++) {
+            if (attached[i]) {
+                assertSame("task #" + i, executions[i], finished[i]);
+            } else {
+                assertNull("task #" + i, finished[i]);
+            }
+            assertNull("task #" + i + " finished only once", tasks[i].finish());
+            assertFalse("task #" + i + " cannot be attached once finished", tasks[i].attach(new Execution()));
+        }
+    }
+
+    /** Concurrent finishes, as from a callback and an abandoned setup, complete the execution just once. */
+    @Test public void finishRacingFinish() throws Exception {
+        for (int round = 0; round < TASKS / THREADS / 10; round++) {
+            final ExecutorStepExecution.RunningTask task = new ExecutorStepExecution.RunningTask();
+            AsynchronousExecution execution = new Execution();
+            assertTrue(task.attach(execution));
+            final CountDownLatch go = new CountDownLatch(1);
+            List<Future<AsynchronousExecution>> finishers = new ArrayList<Future<AsynchronousExecution>>();
+            for (int i = 0; i < THREADS; i++) {
+                finishers.add(pool.submit(new Callable<AsynchronousExecution>() {
+                    @Override public AsynchronousExecution call() throws Exception {
+                        go.await();
+                        return task.finish();
+                    }
+                }));
+            }
+            go.countDown();
+            int completions = 0;
+            for (Future<AsynchronousExecution> finisher : finishers) {
+                AsynchronousExecution e = finisher.get();
+                if (e != null) {
+                    assertSame(execution, e);
+                    completions++;
+                }
+            }
+            assertEquals("round #" + round, 1, completions);
+        }
+    }
+
+    /** Several deserialized copies of one placeholder task resuming at once must share one registration. */
+    @Test public void resumeRacingResume() throws Exception {
+        for (int round = 0; round < TASKS / THREADS / 10; round++) {
+            final String cookie = UUID.randomUUID().toString();
+            final CountDownLatch go = new CountDownLatch(1);
+            List<Future<ExecutorStepExecution.RunningTask>> resumers = new ArrayList<Future<ExecutorStepExecution.RunningTask>>();
+            for (int i = 0; i < THREADS; i++) {
+                resumers.add(pool.submit(new Callable<ExecutorStepExecution.RunningTask>() {
+                    @Override public ExecutorStepExecution.RunningTask call() throws Exception {
+                        go.await();
+                        return ExecutorStepExecution.PlaceholderTask.resume(cookie);
+                    }
+                }));
+            }
+            go.countDown();
+            ExecutorStepExecution.RunningTask registered = null;
+            for (Future<ExecutorStepExecution.RunningTask> resumer : resumers) {
+                ExecutorStepExecution.RunningTask task = resumer.get();
+                if (registered == null) {
+                    registered = task;
+                } else {
+                    assertSame("round #" + round, registered, task);
+                }
+            }
+            ExecutorStepExecution.PlaceholderTask.finish(cookie);
+            assertNotSame("finishing unregisters the task", registered, ExecutorStepExecution.PlaceholderTask.resume(cookie));
+            ExecutorStepExecution.PlaceholderTask.finish(cookie);
+        }
+    }
+
+    private static final class Execution extends AsynchronousExecution {
+        @Override public void interrupt(boolean forShutdown) {}
+        @Override public boolean blocksRestart() {
+            return false;
+        }
+        @Override public boolean displayCell() {
+            return false;
+        }
+    }
+
+}